@@ -0,0 +1,109 @@
+package com.justinsb.etcd;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * End-to-end operations against an in-process server, with each transport; run with -t to measure with several
+ * threads
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientBenchmark {
+    /**
+     * Latency the server adds to every response, to see how the client behaves over a slower network
+     */
+    @Param({ "0" })
+    public long latencyMillis;
+
+    /**
+     * Whether the client sends with a blocking HTTP client rather than the I/O reactor
+     */
+    @Param({ "false", "true" })
+    public boolean blockingTransport;
+
+    /**
+     * Whether gets are pipelined over one connection
+     */
+    @Param({ "false", "true" })
+    public boolean pipelineReads;
+
+    EtcdStubServer server;
+    EtcdClient client;
+    final AtomicInteger threads = new AtomicInteger();
+
+    @Setup
+    public void setup() throws IOException, EtcdClientException {
+        server = new EtcdStubServer();
+        server.setLatency(latencyMillis);
+        EtcdClientConfig config = new EtcdClientConfig();
+        config.blockingTransport = blockingTransport;
+        config.pipelineReads = pipelineReads;
+        config.maxConnectionsPerRoute = config.maxConnectionsTotal;
+        client = new EtcdClient(server.getUri(), config);
+        client.set("/bench/get", "value");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.close();
+        server.close();
+    }
+
+    /**
+     * Each thread writes and watches its own key
+     */
+    @State(Scope.Thread)
+    public static class ThreadState {
+        String key;
+        long index;
+
+        @Setup
+        public void setup(ClientBenchmark benchmark) throws EtcdClientException {
+            key = "/bench/thread-" + benchmark.threads.incrementAndGet();
+            index = benchmark.client.set(key, "0").node.modifiedIndex;
+        }
+    }
+
+    @Benchmark
+    public EtcdResult get() throws EtcdClientException {
+        return client.get("/bench/get");
+    }
+
+    @Benchmark
+    public EtcdResult set(ThreadState state) throws EtcdClientException {
+        return client.set(state.key, "value");
+    }
+
+    /**
+     * A watch on a key, followed by the write that fires it
+     */
+    @Benchmark
+    public EtcdResult watchRoundTrip(ThreadState state) throws Exception {
+        ListenableFuture<EtcdResult> watch = client.watch(state.key, state.index + 1, false);
+        client.set(state.key, "value");
+        EtcdResult event = watch.get();
+        state.index = event.node.modifiedIndex;
+        return event;
+    }
+}
@@ -0,0 +1,70 @@
+package com.justinsb.etcd;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building the request URI for a key, which every operation does
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyUriBenchmark {
+    EtcdClient client;
+
+    @Setup
+    public void setup() {
+        client = new EtcdClient(URI.create("http://127.0.0.1:4001/"));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.close();
+    }
+
+    @Benchmark
+    public URI buildKeyUri() {
+        return client.buildKeyUri("/config/service/timeout", "");
+    }
+
+    @Benchmark
+    public URI buildKeyUriWithQuery() {
+        return client.buildKeyUri("/config/service", "?recursive=true");
+    }
+
+    @Benchmark
+    public URI buildKeyUriNeedingEscapes() {
+        return client.buildKeyUri("/config/my service/a&b=c", "");
+    }
+
+    @Benchmark
+    public String encodePath() {
+        return EtcdKeys.encodePath("/config/service/timeout");
+    }
+
+    @Benchmark
+    public String encodePathNeedingEscapes() {
+        return EtcdKeys.encodePath("/config/my service/a&b=c");
+    }
+
+    @Benchmark
+    public String urlEscape() {
+        return EtcdClient.urlEscape("timeout");
+    }
+}
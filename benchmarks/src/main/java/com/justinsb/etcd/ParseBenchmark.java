@@ -0,0 +1,127 @@
+package com.justinsb.etcd;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHttpResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.common.base.Charsets;
+import com.google.gson.stream.JsonReader;
+
+/**
+ * Decoding responses, from a single key up to a large recursive listing
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+    /**
+     * The number of keys in the listing; 0 is a get of a single key
+     */
+    @Param({ "0", "100", "10000" })
+    int nodes;
+
+    EtcdClient client;
+    byte[] json;
+
+    @Setup
+    public void setup() {
+        client = new EtcdClient(URI.create("http://127.0.0.1:4001/"));
+
+        EtcdResult result = new EtcdResult();
+        result.action = "get";
+        if (nodes == 0) {
+            result.node = node("/config/service/timeout", "30", 1234);
+        } else {
+            result.node = new EtcdNode();
+            result.node.key = "/config";
+            result.node.dir = true;
+            result.node.nodes = new ArrayList<EtcdNode>();
+            for (int i = 0; i < nodes; i++) {
+                result.node.nodes.add(node("/config/key-" + i, "value-" + i, 1000 + i));
+            }
+        }
+        json = EtcdClient.gson.toJson(result).getBytes(Charsets.UTF_8);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.close();
+    }
+
+    static EtcdNode node(String key, String value, long index) {
+        EtcdNode node = new EtcdNode();
+        node.key = key;
+        node.value = value;
+        node.createdIndex = index;
+        node.modifiedIndex = index;
+        return node;
+    }
+
+    /**
+     * The original approach: read the body to a String, then bind it with Gson
+     */
+    @Benchmark
+    public EtcdResult gsonFromString() {
+        String s = new String(json, Charsets.UTF_8);
+        return EtcdClient.gson.fromJson(s, EtcdResult.class);
+    }
+
+    @Benchmark
+    public EtcdResult streaming() throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(json), Charsets.UTF_8));
+        return EtcdJson.readResult(reader);
+    }
+
+    @Benchmark
+    public EtcdResult streamingVisitor(final Blackhole blackhole) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(json), Charsets.UTF_8));
+        return EtcdJson.readResult(reader, EtcdJson.visiting(new EtcdNodeVisitor() {
+            public void visit(EtcdNode node) {
+                blackhole.consume(node);
+            }
+        }));
+    }
+
+    @Benchmark
+    public EtcdCompactTree compact() throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(json), Charsets.UTF_8));
+        EtcdCompactTree.Reader nodeReader = new EtcdCompactTree.Reader();
+        EtcdResult result = EtcdJson.readResult(reader, nodeReader);
+        return nodeReader.build(result.etcdIndex);
+    }
+
+    /**
+     * Everything the client does with a response once it has arrived: status check, index header, decoding
+     */
+    @Benchmark
+    public EtcdResult extractEtcdResult() throws EtcdClientException {
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.setEntity(new ByteArrayEntity(json, ContentType.APPLICATION_JSON));
+        response.setHeader("X-Etcd-Index", "5000");
+        return client.extractEtcdResult(response, new int[] { 200 }, EtcdJson.TREE);
+    }
+}
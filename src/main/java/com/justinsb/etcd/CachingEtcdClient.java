@@ -0,0 +1,463 @@
+package com.justinsb.etcd;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves reads of a subtree from memory, kept up to date by a recursive watch.
+ *
+ * The subtree is loaded with a recursive get, and every change after that read is applied from an
+ * {@link EtcdWatchStream}, so reads are as fresh as the watch (typically a network round trip behind etcd). Callers
+ * that need to see their own writes immediately can ask for a linearizable read, which goes to etcd as a quorum read.
+ *
+ * The cache can be bounded: once it holds more than the maximum number of keys, the least recently read values are
+ * dropped, and reads of dropped keys (and listings of their directories) go to etcd until the key changes again.
+ *
+ * Given a snapshot file, the cache is saved there when it is first loaded and when it is closed (or whenever
+ * {@link #saveSnapshot()} is called). On the next start it is loaded from the file instead of from etcd, and the watch
+ * picks up from the saved index, so only the changes since are read; if etcd no longer has those changes, the subtree
+ * is read in full as usual.
+ *
+ * The returned nodes are shared, and must not be modified.
+ */
+public class CachingEtcdClient implements Closeable {
+    static final Logger log = LoggerFactory.getLogger(CachingEtcdClient.class);
+
+    /**
+     * When evicting, evict down to this fraction of the maximum size, so eviction does not run on every change
+     */
+    static final float EVICT_TO = 0.9f;
+
+    static class Entry {
+        final EtcdNode node;
+        final long expiresAt;
+        final Set<String> children;
+        volatile long lastAccess;
+
+        Entry(EtcdNode node, Set<String> children, long now) {
+            this(node, children, node.ttl != null ? now + node.ttl * 1000L : 0, now);
+        }
+
+        Entry(EtcdNode node, Set<String> children, long expiresAt, long now) {
+            this.node = node;
+            this.expiresAt = expiresAt;
+            this.children = children;
+            this.lastAccess = now;
+        }
+
+        boolean isExpired(long now) {
+            return expiresAt != 0 && now >= expiresAt;
+        }
+    }
+
+    final EtcdClient client;
+    final String prefix;
+    final int maxSize;
+    final EtcdSnapshotFile snapshotFile;
+
+    volatile ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    final Set<String> incomplete = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    volatile long index;
+    EtcdWatchStream stream;
+
+    public CachingEtcdClient(EtcdClient client, String prefix) {
+        this(client, prefix, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Builds a cache of the subtree at the prefix, holding at most <code>maxSize</code> keys
+     */
+    public CachingEtcdClient(EtcdClient client, String prefix, int maxSize) {
+        this(client, prefix, maxSize, null);
+    }
+
+    /**
+     * Builds a cache of the subtree at the prefix, holding at most <code>maxSize</code> keys, that is saved to (and
+     * started from) a snapshot file
+     */
+    public CachingEtcdClient(EtcdClient client, String prefix, int maxSize, File snapshotFile) {
+        this.client = client;
+        this.prefix = EtcdKeys.normalize(prefix);
+        this.maxSize = maxSize;
+        this.snapshotFile = snapshotFile != null ? new EtcdSnapshotFile(snapshotFile) : null;
+    }
+
+    /**
+     * Loads the subtree (from the snapshot file, if there is a usable one), and starts following changes to it
+     */
+    public void start() throws EtcdClientException {
+        if (!loadSnapshot()) {
+            EtcdResult snapshot = EtcdClient.syncGet(client.getOrErrorAsync(prefix, true));
+            load(snapshot);
+            saveSnapshotQuietly();
+        }
+
+        stream = new EtcdWatchStream(client, prefix, index + 1, true, new EtcdWatchListener() {
+            public void onEvent(EtcdResult event) {
+                apply(event);
+            }
+
+            public void onResync(EtcdResult snapshot) {
+                load(snapshot);
+            }
+
+            public void onError(Throwable t) {
+                log.warn("Error watching " + prefix + "; cache may be stale until the watch recovers", t);
+            }
+        });
+        stream.start();
+    }
+
+    public void close() {
+        if (stream != null) {
+            stream.close();
+        }
+        saveSnapshotQuietly();
+    }
+
+    /**
+     * Saves the cache to the snapshot file
+     */
+    public void saveSnapshot() throws IOException {
+        if (snapshotFile == null) {
+            throw new IllegalStateException("No snapshot file was configured");
+        }
+        // Read the index first: everything up to it is already applied, and anything applied while we write is
+        // replayed (harmlessly) by the watch on the next start
+        long savedIndex = index;
+        snapshotFile.save(prefix, savedIndex, entries.values(), incomplete);
+    }
+
+    void saveSnapshotQuietly() {
+        if (snapshotFile == null) {
+            return;
+        }
+        try {
+            saveSnapshot();
+        } catch (IOException e) {
+            log.warn("Error saving snapshot of " + prefix + " to " + snapshotFile.file, e);
+        }
+    }
+
+    /**
+     * Loads the cache from the snapshot file; returns false if there is no usable snapshot
+     */
+    boolean loadSnapshot() {
+        if (snapshotFile == null) {
+            return false;
+        }
+        EtcdSnapshotFile.Contents contents;
+        try {
+            contents = snapshotFile.load(prefix, System.currentTimeMillis());
+        } catch (IOException e) {
+            log.warn("Ignoring snapshot " + snapshotFile.file + ": " + e.getMessage());
+            return false;
+        } catch (RuntimeException e) {
+            log.warn("Ignoring unreadable snapshot " + snapshotFile.file, e);
+            return false;
+        }
+        if (contents == null) {
+            return false;
+        }
+
+        this.entries = contents.entries;
+        this.incomplete.clear();
+        this.incomplete.addAll(contents.incomplete);
+        this.index = contents.index;
+        evictIfNeeded();
+        return true;
+    }
+
+    /**
+     * The index of the latest change applied to the cache
+     */
+    public long getIndex() {
+        return index;
+    }
+
+    /**
+     * The number of keys (including directories) held in memory
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Retrieves a key. Returns null if not found.
+     */
+    public EtcdResult get(String key) throws EtcdClientException {
+        return get(key, false);
+    }
+
+    /**
+     * Retrieves a key; a linearizable read bypasses the cache and is made as a quorum read, so it cannot be answered
+     * with stale data by a lagging member. Returns null if not found.
+     */
+    public EtcdResult get(String key, boolean linearizable) throws EtcdClientException {
+        key = EtcdKeys.normalize(key);
+        if (linearizable) {
+            return client.getQuorum(key);
+        }
+        if (!covers(key)) {
+            return client.get(key);
+        }
+
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(key);
+        if (entry == null || entry.isExpired(now)) {
+            if (isIncomplete(key)) {
+                return client.get(key);
+            }
+            return null;
+        }
+        entry.lastAccess = now;
+
+        EtcdNode node = entry.node;
+        if (node.dir) {
+            if (isIncomplete(key) || incomplete.contains(key)) {
+                return client.get(key);
+            }
+            EtcdNode listing = copyOf(node);
+            listing.nodes = children(entry, now);
+            node = listing;
+        }
+
+        EtcdResult result = new EtcdResult();
+        result.action = "get";
+        result.node = node;
+        result.etcdIndex = index;
+        return result;
+    }
+
+    /**
+     * Lists a directory
+     */
+    public List<EtcdNode> listDirectory(String key) throws EtcdClientException {
+        key = EtcdKeys.normalize(key);
+        if (!covers(key) || isIncomplete(key) || incomplete.contains(key)) {
+            return client.listDirectory(key);
+        }
+
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(key);
+        if (entry == null || entry.isExpired(now) || !entry.node.dir) {
+            return null;
+        }
+        entry.lastAccess = now;
+        return children(entry, now);
+    }
+
+    List<EtcdNode> children(Entry dir, long now) {
+        List<EtcdNode> children = new ArrayList<EtcdNode>(dir.children.size());
+        for (String childKey : dir.children) {
+            Entry child = entries.get(childKey);
+            if (child != null && !child.isExpired(now)) {
+                children.add(child.node);
+            }
+        }
+        return children;
+    }
+
+    boolean covers(String key) {
+        return key.equals(prefix) || EtcdKeys.isUnder(key, prefix);
+    }
+
+    /**
+     * Checks if a directory above the key has had children evicted
+     */
+    boolean isIncomplete(String key) {
+        if (incomplete.isEmpty()) {
+            return false;
+        }
+        for (String dir = EtcdKeys.parentOf(key); dir != null && covers(dir); dir = EtcdKeys.parentOf(dir)) {
+            if (incomplete.contains(dir)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replaces the contents of the cache with a recursive listing. Called only from the watch thread (or before the
+     * watch starts), so never concurrently with apply.
+     */
+    void load(EtcdResult snapshot) {
+        long now = System.currentTimeMillis();
+        ConcurrentHashMap<String, Entry> loaded = new ConcurrentHashMap<String, Entry>();
+        if (snapshot != null && !snapshot.isError() && snapshot.node != null) {
+            addTree(loaded, snapshot.node, now);
+        }
+
+        long loadedIndex;
+        if (snapshot != null && snapshot.etcdIndex != null) {
+            loadedIndex = snapshot.etcdIndex;
+        } else if (snapshot != null && snapshot.node != null) {
+            loadedIndex = EtcdWatchStream.maxModifiedIndex(snapshot.node);
+        } else {
+            loadedIndex = index;
+        }
+
+        this.entries = loaded;
+        this.incomplete.clear();
+        this.index = loadedIndex;
+        evictIfNeeded();
+    }
+
+    static void addTree(ConcurrentHashMap<String, Entry> entries, EtcdNode node, long now) {
+        Set<String> children = null;
+        if (node.dir) {
+            children = new ConcurrentSkipListSet<String>();
+            if (node.nodes != null) {
+                for (EtcdNode child : node.nodes) {
+                    children.add(child.key);
+                    addTree(entries, child, now);
+                }
+            }
+            // The children are reachable through the entries; don't hold on to the listing as well
+            EtcdNode copy = copyOf(node);
+            node = copy;
+        }
+        entries.put(node.key, new Entry(node, children, now));
+    }
+
+    static EtcdNode copyOf(EtcdNode node) {
+        EtcdNode copy = new EtcdNode();
+        copy.key = node.key;
+        copy.createdIndex = node.createdIndex;
+        copy.modifiedIndex = node.modifiedIndex;
+        copy.value = node.value;
+        copy.expiration = node.expiration;
+        copy.ttl = node.ttl;
+        copy.dir = node.dir;
+        return copy;
+    }
+
+    /**
+     * Applies a change from the watch
+     */
+    void apply(EtcdResult event) {
+        EtcdNode node = event.node;
+        if (node == null || node.key == null || !covers(node.key)) {
+            return;
+        }
+        String key = node.key;
+        long now = System.currentTimeMillis();
+
+        Entry existing = entries.get(key);
+        if (existing != null && existing.node.modifiedIndex > node.modifiedIndex) {
+            // Already have something newer
+            return;
+        }
+
+        String action = event.action;
+        if ("delete".equals(action) || "expire".equals(action) || "compareAndDelete".equals(action)) {
+            remove(key);
+        } else {
+            Set<String> children = null;
+            if (node.dir) {
+                children = existing != null && existing.children != null ? existing.children
+                        : new ConcurrentSkipListSet<String>();
+                node = copyOf(node);
+            }
+            Entry parent = ensureDirectory(EtcdKeys.parentOf(key), now);
+            entries.put(key, new Entry(node, children, now));
+            if (parent != null) {
+                parent.children.add(key);
+            }
+        }
+
+        if (node.modifiedIndex > index) {
+            index = node.modifiedIndex;
+        }
+        evictIfNeeded();
+    }
+
+    /**
+     * Makes sure the directory (and those above it, within the prefix) are present, returning its entry
+     */
+    Entry ensureDirectory(String key, long now) {
+        if (key == null || !covers(key)) {
+            return null;
+        }
+        Entry entry = entries.get(key);
+        if (entry != null && entry.node.dir) {
+            return entry;
+        }
+        Entry parent = ensureDirectory(EtcdKeys.parentOf(key), now);
+        EtcdNode node = new EtcdNode();
+        node.key = key;
+        node.dir = true;
+        entry = new Entry(node, new ConcurrentSkipListSet<String>(), now);
+        entries.put(key, entry);
+        if (parent != null) {
+            parent.children.add(key);
+        }
+        return entry;
+    }
+
+    void remove(String key) {
+        removeTree(key);
+        String parentKey = EtcdKeys.parentOf(key);
+        if (parentKey != null) {
+            Entry parent = entries.get(parentKey);
+            if (parent != null && parent.children != null) {
+                parent.children.remove(key);
+            }
+        }
+    }
+
+    void removeTree(String key) {
+        Entry entry = entries.remove(key);
+        incomplete.remove(key);
+        if (entry != null && entry.children != null) {
+            for (String child : entry.children) {
+                removeTree(child);
+            }
+        }
+    }
+
+    /**
+     * Drops the least recently read values once the cache is over its maximum size
+     */
+    void evictIfNeeded() {
+        if (maxSize == Integer.MAX_VALUE || entries.size() <= maxSize) {
+            return;
+        }
+
+        List<Entry> leaves = new ArrayList<Entry>();
+        for (Entry entry : entries.values()) {
+            if (!entry.node.dir) {
+                leaves.add(entry);
+            }
+        }
+        Collections.sort(leaves, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                return a.lastAccess < b.lastAccess ? -1 : (a.lastAccess == b.lastAccess ? 0 : 1);
+            }
+        });
+
+        int target = (int) (maxSize * EVICT_TO);
+        for (Entry leaf : leaves) {
+            if (entries.size() <= target) {
+                break;
+            }
+            String key = leaf.node.key;
+            remove(key);
+            String parentKey = EtcdKeys.parentOf(key);
+            if (parentKey != null) {
+                incomplete.add(parentKey);
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.justinsb.etcd;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.google.common.base.Charsets;
+
+/**
+ * The URL-safe Base64 alphabet, without padding, which is how binary values are stored in etcd. Every character of the
+ * encoding is unreserved in a form body, so it needs no further escaping.
+ *
+ * Decoding also accepts the standard alphabet and padding, so values written by other clients can be read.
+ */
+class EtcdBase64 {
+    static final byte[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_"
+            .getBytes(Charsets.US_ASCII);
+
+    static final byte[] DECODE = new byte[128];
+
+    static {
+        Arrays.fill(DECODE, (byte) -1);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            DECODE[ALPHABET[i]] = (byte) i;
+        }
+        DECODE['+'] = 62;
+        DECODE['/'] = 63;
+    }
+
+    static int encodedLength(int length) {
+        return (length * 4 + 2) / 3;
+    }
+
+    /**
+     * Encodes the remaining bytes of the buffer (without moving its position) into the array at the offset
+     */
+    static void encode(ByteBuffer src, byte[] dst, int offset) {
+        int i = src.position();
+        int limit = src.limit();
+        int o = offset;
+        for (; i + 3 <= limit; i += 3) {
+            int bits = (src.get(i) & 0xff) << 16 | (src.get(i + 1) & 0xff) << 8 | (src.get(i + 2) & 0xff);
+            dst[o++] = ALPHABET[bits >>> 18];
+            dst[o++] = ALPHABET[(bits >>> 12) & 0x3f];
+            dst[o++] = ALPHABET[(bits >>> 6) & 0x3f];
+            dst[o++] = ALPHABET[bits & 0x3f];
+        }
+        int left = limit - i;
+        if (left == 1) {
+            int bits = (src.get(i) & 0xff) << 16;
+            dst[o++] = ALPHABET[bits >>> 18];
+            dst[o++] = ALPHABET[(bits >>> 12) & 0x3f];
+        } else if (left == 2) {
+            int bits = (src.get(i) & 0xff) << 16 | (src.get(i + 1) & 0xff) << 8;
+            dst[o++] = ALPHABET[bits >>> 18];
+            dst[o++] = ALPHABET[(bits >>> 12) & 0x3f];
+            dst[o++] = ALPHABET[(bits >>> 6) & 0x3f];
+        }
+    }
+
+    /**
+     * The number of bytes the encoding decodes to
+     */
+    static int decodedLength(CharSequence s) {
+        int length = s.length();
+        while (length > 0 && s.charAt(length - 1) == '=') {
+            length--;
+        }
+        return length * 3 / 4;
+    }
+
+    /**
+     * Decodes into the buffer, advancing its position
+     *
+     * @throws IllegalArgumentException if the string is not Base64
+     */
+    static void decode(CharSequence s, ByteBuffer dst) {
+        int length = s.length();
+        while (length > 0 && s.charAt(length - 1) == '=') {
+            length--;
+        }
+        if (length % 4 == 1) {
+            throw new IllegalArgumentException("Truncated Base64");
+        }
+
+        int bits = 0;
+        int count = 0;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            int value = c < 128 ? DECODE[c] : -1;
+            if (value < 0) {
+                throw new IllegalArgumentException("Invalid Base64 character at " + i);
+            }
+            bits = bits << 6 | value;
+            count++;
+            if (count == 4) {
+                dst.put((byte) (bits >>> 16));
+                dst.put((byte) (bits >>> 8));
+                dst.put((byte) bits);
+                bits = 0;
+                count = 0;
+            }
+        }
+        if (count == 2) {
+            dst.put((byte) (bits >>> 4));
+        } else if (count == 3) {
+            dst.put((byte) (bits >>> 10));
+            dst.put((byte) (bits >>> 2));
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.justinsb.etcd;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Sends a stream of writes with many requests in flight at once, for bulk loads.
+ *
+ * At most <code>windowSize</code> operations are outstanding at a time; once the window is full, submitting another
+ * operation blocks until one completes. Operations on the same key are sent one after another, in the order they were
+ * submitted; operations on different keys may complete in any order. Each operation returns a future for its own
+ * result, and a failed operation does not stop later ones (including later ones on the same key).
+ */
+public class EtcdBatchWriter implements Closeable {
+    public static final int DEFAULT_WINDOW_SIZE = 16;
+
+    final EtcdClient client;
+    final int windowSize;
+    final Semaphore window;
+
+    // The last operation submitted for each key that has one outstanding; guarded by this
+    final Map<String, ListenableFuture<EtcdResult>> tails = Maps.newHashMap();
+
+    public EtcdBatchWriter(EtcdClient client) {
+        this(client, DEFAULT_WINDOW_SIZE);
+    }
+
+    public EtcdBatchWriter(EtcdClient client, int windowSize) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("windowSize must be at least 1");
+        }
+        this.client = client;
+        this.windowSize = windowSize;
+        this.window = new Semaphore(windowSize, true);
+    }
+
+    /**
+     * A write, started once the writes before it on the same key have completed
+     */
+    interface Operation {
+        ListenableFuture<EtcdResult> start() throws EtcdClientException;
+    }
+
+    /**
+     * Sets a key to a new value
+     */
+    public ListenableFuture<EtcdResult> set(final String key, final String value) throws EtcdClientException {
+        return set(key, value, null);
+    }
+
+    /**
+     * Sets a key to a new value with an (optional) ttl
+     */
+    public ListenableFuture<EtcdResult> set(final String key, final String value, final Integer ttl)
+            throws EtcdClientException {
+        return submit(key, new Operation() {
+            public ListenableFuture<EtcdResult> start() throws EtcdClientException {
+                return client.setAsync(key, value, ttl);
+            }
+        });
+    }
+
+    /**
+     * Deletes the given key
+     */
+    public ListenableFuture<EtcdResult> delete(final String key) throws EtcdClientException {
+        return submit(key, new Operation() {
+            public ListenableFuture<EtcdResult> start() throws EtcdClientException {
+                return client.deleteAsync(key);
+            }
+        });
+    }
+
+    /**
+     * Sets a key to a new value, if the value is a specified value
+     */
+    public ListenableFuture<EtcdResult> cas(final String key, final String prevValue, final String value)
+            throws EtcdClientException {
+        return submit(key, new Operation() {
+            public ListenableFuture<EtcdResult> start() throws EtcdClientException {
+                return client.casAsync(key, prevValue, value);
+            }
+        });
+    }
+
+    /**
+     * Waits until every operation submitted so far has completed
+     */
+    public void flush() throws EtcdClientException {
+        try {
+            window.acquire(windowSize);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EtcdClientException("Interrupted waiting for writes", e);
+        }
+        window.release(windowSize);
+    }
+
+    /**
+     * Waits for outstanding operations to complete. The client is not closed.
+     */
+    public void close() throws EtcdClientException {
+        flush();
+    }
+
+    /**
+     * The number of operations submitted but not yet completed
+     */
+    public int getOutstanding() {
+        return windowSize - window.availablePermits();
+    }
+
+    ListenableFuture<EtcdResult> submit(final String key, final Operation operation) throws EtcdClientException {
+        try {
+            window.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EtcdClientException("Interrupted waiting for space in the write window", e);
+        }
+
+        final SettableFuture<EtcdResult> result = SettableFuture.create();
+        ListenableFuture<EtcdResult> previous;
+        synchronized (this) {
+            previous = tails.put(key, result);
+        }
+
+        result.addListener(new Runnable() {
+            public void run() {
+                synchronized (EtcdBatchWriter.this) {
+                    if (tails.get(key) == result) {
+                        tails.remove(key);
+                    }
+                }
+                window.release();
+            }
+        }, MoreExecutors.sameThreadExecutor());
+
+        Runnable start = new Runnable() {
+            public void run() {
+                ListenableFuture<EtcdResult> future;
+                try {
+                    future = operation.start();
+                } catch (EtcdClientException e) {
+                    result.setException(e);
+                    return;
+                } catch (RuntimeException e) {
+                    result.setException(e);
+                    return;
+                }
+                Futures.addCallback(future, new FutureCallback<EtcdResult>() {
+                    public void onSuccess(EtcdResult value) {
+                        result.set(value);
+                    }
+
+                    public void onFailure(Throwable t) {
+                        result.setException(t);
+                    }
+                });
+            }
+        };
+
+        if (previous == null) {
+            start.run();
+        } else {
+            previous.addListener(start, MoreExecutors.sameThreadExecutor());
+        }
+        return result;
+    }
+}
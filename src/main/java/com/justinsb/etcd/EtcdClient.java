@@ -1,88 +1,398 @@
 package com.justinsb.etcd;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
+import java.net.ConnectException;
 import java.net.URI;
 import java.net.URLEncoder;
+import java.net.UnknownHostException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
-
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
 import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
 import org.apache.http.StatusLine;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.client.utils.URLEncodedUtils;
 import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
 import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
 import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Charsets;
-import com.google.common.base.Splitter;
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureFallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonParseException;
-import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.MalformedJsonException;
+import com.justinsb.etcd.EtcdEndpoints.Endpoint;
+
+public class EtcdClient implements Closeable {
+    static final Logger log = LoggerFactory.getLogger(EtcdClient.class);
 
-public class EtcdClient {
-    static final CloseableHttpAsyncClient httpClient = buildDefaultHttpClient();
     static final Gson gson = new GsonBuilder().create();
 
-    static CloseableHttpAsyncClient buildDefaultHttpClient() {
-        // TODO: Increase timeout??
-        RequestConfig requestConfig = RequestConfig.custom().build();
-        CloseableHttpAsyncClient httpClient = HttpAsyncClients.custom().setDefaultRequestConfig(requestConfig).build();
+    /**
+     * The client shared by every EtcdClient built without a config; created on first use and never closed
+     */
+    static class DefaultHttpClient {
+        static final CloseableHttpAsyncClient INSTANCE = buildHttpClient(new EtcdClientConfig());
+    }
+
+    static CloseableHttpAsyncClient buildHttpClient(final EtcdClientConfig config) {
+        RequestConfig requestConfig = RequestConfig.custom().setConnectTimeout(config.connectTimeout)
+                .setConnectionRequestTimeout(config.connectionRequestTimeout).build();
+        IOReactorConfig ioReactorConfig = IOReactorConfig.custom().setIoThreadCount(config.ioThreadCount)
+                .setConnectTimeout(config.connectTimeout).build();
+        PoolingNHttpClientConnectionManager connectionManager;
+        try {
+            connectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(ioReactorConfig));
+        } catch (IOReactorException e) {
+            throw new IllegalStateException("Unable to start I/O reactor", e);
+        }
+        connectionManager.setDefaultMaxPerRoute(config.maxConnectionsPerRoute);
+        connectionManager.setMaxTotal(config.maxConnectionsTotal);
+
+        CloseableHttpAsyncClient httpClient = HttpAsyncClients.custom().setDefaultRequestConfig(requestConfig)
+                .setConnectionManager(connectionManager).setKeepAliveStrategy(keepAliveStrategy(config))
+                .addInterceptorLast(CONNECTION_TIMER).build();
         httpClient.start();
         return httpClient;
     }
 
-    final URI baseUri;
+    /**
+     * Builds the threads that send blocking requests for callers that do not wait for them: no more than there are
+     * connections for them to use, as each blocks while it holds one. Further requests queue for a thread.
+     */
+    static ExecutorService buildBlockingExecutor(EtcdClientConfig config) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(config.maxConnectionsTotal, config.maxConnectionsTotal,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder().setDaemon(true)
+                        .setNameFormat("etcd-client-blocking-%d").build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
 
+    /**
+     * Builds the blocking client used when {@link EtcdClientConfig#blockingTransport} is set. It neither retries nor
+     * follows redirects itself, as the routing layer does both.
+     */
+    static CloseableHttpClient buildBlockingHttpClient(EtcdClientConfig config) {
+        RequestConfig requestConfig = RequestConfig.custom().setConnectTimeout(config.connectTimeout)
+                .setConnectionRequestTimeout(config.connectionRequestTimeout)
+                .setSocketTimeout((int) Math.min(config.requestTimeout, Integer.MAX_VALUE)).build();
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setDefaultMaxPerRoute(config.maxConnectionsPerRoute);
+        connectionManager.setMaxTotal(config.maxConnectionsTotal);
+
+        return HttpClients.custom().setDefaultRequestConfig(requestConfig).setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(keepAliveStrategy(config)).addInterceptorLast(CONNECTION_TIMER)
+                .disableAutomaticRetries().disableRedirectHandling().build();
+    }
+
+    static ConnectionKeepAliveStrategy keepAliveStrategy(final EtcdClientConfig config) {
+        return new ConnectionKeepAliveStrategy() {
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                if (duration < 0) {
+                    duration = config.keepAlive;
+                }
+                return duration;
+            }
+        };
+    }
+
+    static final String SENT_AT = "etcd.sentAt";
+    static final String CONNECTED_AT = "etcd.connectedAt";
+
+    /**
+     * Records when an instrumented request was given its connection; request interceptors run once the connection has
+     * been leased
+     */
+    static final HttpRequestInterceptor CONNECTION_TIMER = new HttpRequestInterceptor() {
+        public void process(HttpRequest request, HttpContext context) {
+            if (context.getAttribute(SENT_AT) != null) {
+                context.setAttribute(CONNECTED_AT, System.nanoTime());
+            }
+        }
+    };
+
+    /**
+     * Shared timer thread, used to enforce request timeouts
+     */
+    static class Scheduler {
+        static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("etcd-client-timer-%d").build());
+    }
+
+    static final String KEYS_PATH = "/v2/keys";
+    static final URI VERSION_URI = URI.create("/version");
+    static final int KEY_URI_CACHE_SIZE = 4096;
+    static final byte[] VALUE_PARAM = "value=".getBytes(Charsets.US_ASCII);
+
+    final EtcdEndpoints endpoints;
+    final EtcdClientConfig config;
+    final CloseableHttpAsyncClient httpClient;
+    final boolean ownsHttpClient;
+    final CloseableHttpClient blockingHttpClient;
+    final ExecutorService blockingExecutor;
+    final EtcdPipelines pipelines;
+    final EtcdClientListener listener;
+    final ConcurrentMap<String, URI> keyUris = new ConcurrentHashMap<String, URI>();
+    final EtcdRetryPolicy retryPolicy;
+    final EtcdRetryBudget retryBudget;
+    final EtcdLatencyTracker readLatency;
+    final EtcdKeepAlive keepAlive = new EtcdKeepAlive(this);
+
+    // Reads in flight, when coalescing is enabled
+    final ConcurrentMap<URI, ListenableFuture<EtcdResult>> inFlightReads =
+            new ConcurrentHashMap<URI, ListenableFuture<EtcdResult>>();
+
+    /**
+     * Builds a client that shares the default connection pool
+     */
     public EtcdClient(URI baseUri) {
-        String uri = baseUri.toString();
-        if (!uri.endsWith("/")) {
-            uri += "/";
-            baseUri = URI.create(uri);
+        this(Collections.singletonList(baseUri));
+    }
+
+    /**
+     * Builds a client with its own connection pool, sized by the config. The pool is released by {@link #close()}.
+     */
+    public EtcdClient(URI baseUri, EtcdClientConfig config) {
+        this(Collections.singletonList(baseUri), config);
+    }
+
+    /**
+     * Builds a client for a cluster, that shares the default connection pool
+     */
+    public EtcdClient(List<URI> baseUris) {
+        this(baseUris, new EtcdClientConfig(), DefaultHttpClient.INSTANCE, false);
+    }
+
+    /**
+     * Builds a client for a cluster, with its own connection pool
+     */
+    public EtcdClient(List<URI> baseUris, EtcdClientConfig config) {
+        this(baseUris, config, buildHttpClient(config), true);
+    }
+
+    private EtcdClient(List<URI> baseUris, EtcdClientConfig config, CloseableHttpAsyncClient httpClient,
+            boolean ownsHttpClient) {
+        this.endpoints = new EtcdEndpoints(baseUris, config.endpointFailureCooldown);
+        this.config = config;
+        this.httpClient = httpClient;
+        this.ownsHttpClient = ownsHttpClient;
+        this.blockingHttpClient = config.blockingTransport ? buildBlockingHttpClient(config) : null;
+        this.blockingExecutor = config.blockingTransport ? buildBlockingExecutor(config) : null;
+        this.listener = config.listener != null ? new EtcdGuardedListener(config.listener) : null;
+        this.pipelines = config.pipelineReads ? new EtcdPipelines(config, listener) : null;
+        this.retryPolicy = config.retryPolicy != null ? config.retryPolicy : EtcdRetryPolicy.none();
+        this.retryBudget = new EtcdRetryBudget(retryPolicy.retryBudgetRatio, retryPolicy.minRetriesPerSecond);
+        this.readLatency = new EtcdLatencyTracker(retryPolicy.hedgePercentile);
+    }
+
+    /**
+     * Releases the connection pool, if this client owns one
+     */
+    public void close() throws IOException {
+        if (ownsHttpClient) {
+            httpClient.close();
+        }
+        if (blockingHttpClient != null) {
+            for (Runnable queued : blockingExecutor.shutdownNow()) {
+                ((BlockingRequest) queued).future.setException(new IOException("Client closed"));
+            }
+            blockingHttpClient.close();
+        }
+        if (pipelines != null) {
+            pipelines.close();
         }
-        this.baseUri = baseUri;
     }
 
     /**
      * Retrieves a key. Returns null if not found.
      */
     public EtcdResult get(String key) throws EtcdClientException {
-        URI uri = buildKeyUri("v2/keys", key, "");
-        HttpGet request = new HttpGet(uri);
+        beginSyncCall();
+        try {
+            return syncGet(getAsync(key));
+        } finally {
+            endSyncCall();
+        }
+    }
 
-        EtcdResult result = syncExecute(request, new int[] { 200, 404 }, 100);
-        if (result.isError()) {
-            if (result.errorCode == 100) {
-                return null;
+    /**
+     * Retrieves a key, without blocking. The future yields null if the key is not found.
+     */
+    public ListenableFuture<EtcdResult> getAsync(String key) throws EtcdClientException {
+        return getAsync(key, false);
+    }
+
+    /**
+     * Retrieves a key and, if it is a directory, everything beneath it. Returns null if not found.
+     */
+    public EtcdResult get(String key, boolean recursive) throws EtcdClientException {
+        beginSyncCall();
+        try {
+            return syncGet(getAsync(key, recursive));
+        } finally {
+            endSyncCall();
+        }
+    }
+
+    /**
+     * Retrieves a key and (optionally) everything beneath it, without blocking. The future yields null if the key is
+     * not found.
+     */
+    public ListenableFuture<EtcdResult> getAsync(String key, boolean recursive) throws EtcdClientException {
+        return Futures.transform(getOrErrorAsync(key, recursive), NOT_FOUND_TO_NULL);
+    }
+
+    /**
+     * Retrieves a key with a quorum read, which the member only answers once the cluster has agreed on it, so it sees
+     * every write that completed before it was made (a plain read may be answered from a lagging follower). Returns
+     * null if not found.
+     */
+    public EtcdResult getQuorum(String key) throws EtcdClientException {
+        beginSyncCall();
+        try {
+            return syncGet(getQuorumAsync(key));
+        } finally {
+            endSyncCall();
+        }
+    }
+
+    /**
+     * Retrieves a key with a quorum read, without blocking. The future yields null if the key is not found.
+     */
+    public ListenableFuture<EtcdResult> getQuorumAsync(String key) throws EtcdClientException {
+        // Never coalesced: joining a read already in flight could miss a write that completed before this call
+        URI uri = buildKeyUri(key, "?quorum=true");
+        return Futures.transform(asyncExecute(new HttpGet(uri), new int[] { 200, 404 }, 100), NOT_FOUND_TO_NULL);
+    }
+
+    static final Function<EtcdResult, EtcdResult> NOT_FOUND_TO_NULL = new Function<EtcdResult, EtcdResult>() {
+        public EtcdResult apply(EtcdResult result) {
+            if (result != null && result.isError()) {
+                if (result.errorCode == 100) {
+                    return null;
+                }
             }
+            return result;
         }
-        return result;
+    };
+
+    /**
+     * Retrieves a key, reporting "not found" as an error result (which still carries the etcd index)
+     */
+    ListenableFuture<EtcdResult> getOrErrorAsync(String key, boolean recursive) throws EtcdClientException {
+        URI uri = buildKeyUri(key, recursive ? "?recursive=true" : "");
+
+        return asyncRead(uri, new int[] { 200, 404 }, 100);
+    }
+
+    /**
+     * Retrieves a group of keys as they all stood at one etcd index, so a writer updating them together is never seen
+     * half-way. Keys in one directory are read with a single listing; otherwise they are read concurrently, and any
+     * that may have changed since the others were read are read again. Directories are returned as listings of their
+     * immediate children, or without them.
+     */
+    public EtcdMultiResult multiGet(String... keys) throws EtcdClientException {
+        beginSyncCall();
+        try {
+            return syncGet(multiGetAsync(Arrays.asList(keys)));
+        } finally {
+            endSyncCall();
+        }
+    }
+
+    /**
+     * Retrieves a group of keys as they all stood at one etcd index, without blocking
+     */
+    public ListenableFuture<EtcdMultiResult> multiGetAsync(List<String> keys) throws EtcdClientException {
+        return new EtcdMultiGet(this, keys).start();
     }
 
     /**
      * Deletes the given key
      */
     public EtcdResult delete(String key) throws EtcdClientException {
-        URI uri = buildKeyUri("v2/keys", key, "");
+        beginSyncCall();
+        try {
+            return syncGet(deleteAsync(key));
+        } finally {
+            endSyncCall();
+        }
+    }
+
+    /**
+     * Deletes the given key, without blocking
+     */
+    public ListenableFuture<EtcdResult> deleteAsync(String key) throws EtcdClientException {
+        URI uri = buildKeyUri(key, "");
         HttpDelete request = new HttpDelete(uri);
 
-        return syncExecute(request, new int[] { 200, 404 });
+        return asyncExecute(request, new int[] { 200, 404 });
     }
 
     /**
@@ -97,6 +407,25 @@ public class EtcdClient {
      */
 
     public EtcdResult set(String key, String value, Integer ttl) throws EtcdClientException {
+        beginSyncCall();
+        try {
+            return syncGet(setAsync(key, value, ttl));
+        } finally {
+            endSyncCall();
+        }
+    }
+
+    /**
+     * Sets a key to a new value, without blocking
+     */
+    public ListenableFuture<EtcdResult> setAsync(String key, String value) throws EtcdClientException {
+        return setAsync(key, value, null);
+    }
+
+    /**
+     * Sets a key to a new value with an (optional) ttl, without blocking
+     */
+    public ListenableFuture<EtcdResult> setAsync(String key, String value, Integer ttl) throws EtcdClientException {
         List<BasicNameValuePair> data = Lists.newArrayList();
         data.add(new BasicNameValuePair("value", value));
         if (ttl != null) {
@@ -106,10 +435,129 @@ public class EtcdClient {
         return set0(key, data, new int[] { 200, 201 });
     }
 
+    /**
+     * Sets a key to a binary value (the remaining bytes of the buffer), stored as URL-safe Base64
+     */
+    public EtcdResult setBytes(String key, ByteBuffer value) throws EtcdClientException {
+        return setBytes(key, value, null);
+    }
+
+    /**
+     * Sets a key to a binary value with an (optional) ttl
+     */
+    public EtcdResult setBytes(String key, ByteBuffer value, Integer ttl) throws EtcdClientException {
+        beginSyncCall();
+        try {
+            return syncGet(setBytesAsync(key, value, ttl));
+        } finally {
+            endSyncCall();
+        }
+    }
+
+    /**
+     * Sets a key to a binary value with an (optional) ttl, without blocking. The value is encoded straight into the
+     * request body, before this returns, so the buffer can be reused at once; its position is not changed.
+     */
+    public ListenableFuture<EtcdResult> setBytesAsync(String key, ByteBuffer value, Integer ttl)
+            throws EtcdClientException {
+        byte[] ttlParam = ttl != null ? ("&ttl=" + ttl).getBytes(Charsets.US_ASCII) : new byte[0];
+        int encodedLength = EtcdBase64.encodedLength(value.remaining());
+        byte[] body = new byte[VALUE_PARAM.length + encodedLength + ttlParam.length];
+        System.arraycopy(VALUE_PARAM, 0, body, 0, VALUE_PARAM.length);
+        EtcdBase64.encode(value, body, VALUE_PARAM.length);
+        System.arraycopy(ttlParam, 0, body, VALUE_PARAM.length + encodedLength, ttlParam.length);
+
+        HttpPut request = new HttpPut(buildKeyUri(key, ""));
+        request.setEntity(new ByteArrayEntity(body, ContentType.APPLICATION_FORM_URLENCODED));
+
+        return asyncExecute(request, new int[] { 200, 201 });
+    }
+
+    /**
+     * Retrieves a binary value written by {@link #setBytes}. Returns null if not found.
+     */
+    public byte[] getBytes(String key) throws EtcdClientException {
+        EtcdResult result = get(key);
+        if (result == null || result.node == null || result.node.value == null) {
+            return null;
+        }
+        String value = result.node.value;
+        ByteBuffer decoded = ByteBuffer.allocate(EtcdBase64.decodedLength(value));
+        try {
+            EtcdBase64.decode(value, decoded);
+        } catch (IllegalArgumentException e) {
+            throw new EtcdClientException("Value of " + key + " is not Base64", e);
+        }
+        return decoded.array();
+    }
+
+    /**
+     * Retrieves a binary value, decoding it into the buffer (from its position, which is advanced). Returns null if
+     * not found; the node in the result has no value, as it is in the buffer instead.
+     */
+    public EtcdResult getBytes(String key, ByteBuffer dst) throws EtcdClientException {
+        beginSyncCall();
+        try {
+            return syncGet(getBytesAsync(key, dst));
+        } finally {
+            endSyncCall();
+        }
+    }
+
+    /**
+     * Retrieves a binary value into the buffer, without blocking. The buffer is written as the response is decoded,
+     * so it must not be touched until the future completes; the future fails if the value does not fit.
+     */
+    public ListenableFuture<EtcdResult> getBytesAsync(final String key, final ByteBuffer dst)
+            throws EtcdClientException {
+        HttpGet request = new HttpGet(buildKeyUri(key, ""));
+
+        EtcdJson.NodeReader reader = new EtcdJson.NodeReader() {
+            public EtcdNode read(JsonReader in) throws IOException {
+                EtcdNode node = EtcdJson.readNode(in, null);
+                if (node.value != null) {
+                    int length = EtcdBase64.decodedLength(node.value);
+                    if (length > dst.remaining()) {
+                        throw new EtcdClientException("Value of " + key + " is " + length
+                                + " bytes, but the buffer has room for " + dst.remaining(), new BufferOverflowException());
+                    }
+                    try {
+                        EtcdBase64.decode(node.value, dst);
+                    } catch (IllegalArgumentException e) {
+                        throw new EtcdClientException("Value of " + key + " is not Base64", e);
+                    }
+                    node.value = null;
+                }
+                return node;
+            }
+        };
+        return Futures.transform(asyncExecute(request, new int[] { 200, 404 }, reader, 100),
+                new Function<EtcdResult, EtcdResult>() {
+                    public EtcdResult apply(EtcdResult result) {
+                        if (result != null && result.isError()) {
+                            return null;
+                        }
+                        return result;
+                    }
+                });
+    }
+
     /**
      * Creates a directory
      */
     public EtcdResult createDirectory(String key) throws EtcdClientException {
+        beginSyncCall();
+        try {
+            return syncGet(createDirectoryAsync(key));
+        } finally {
+            endSyncCall();
+        }
+    }
+
+    /**
+     * Creates a directory, without blocking
+     */
+    public ListenableFuture<EtcdResult> createDirectoryAsync(String key) throws EtcdClientException {
         List<BasicNameValuePair> data = Lists.newArrayList();
         data.add(new BasicNameValuePair("dir", "true"));
         return set0(key, data, new int[] { 200, 201 });
@@ -119,25 +567,65 @@ public class EtcdClient {
      * Lists a directory
      */
     public List<EtcdNode> listDirectory(String key) throws EtcdClientException {
-      EtcdResult result = get(key + "/");
-      if (result == null || result.node == null) {
-        return null;
-      }
-      return result.node.nodes;
+        beginSyncCall();
+        try {
+            return syncGet(listDirectoryAsync(key));
+        } finally {
+            endSyncCall();
+        }
+    }
+
+    /**
+     * Lists a directory, without blocking. The future yields null if the directory is not found.
+     */
+    public ListenableFuture<List<EtcdNode>> listDirectoryAsync(String key) throws EtcdClientException {
+        return Futures.transform(getAsync(key + "/"), new Function<EtcdResult, List<EtcdNode>>() {
+            public List<EtcdNode> apply(EtcdResult result) {
+                if (result == null || result.node == null) {
+                    return null;
+                }
+                return result.node.nodes;
+            }
+        });
     }
+
     /**
      * Delete a directory
      */
     public EtcdResult deleteDirectory(String key) throws EtcdClientException {
-        URI uri = buildKeyUri("v2/keys", key, "?dir=true");
+        beginSyncCall();
+        try {
+            return syncGet(deleteDirectoryAsync(key));
+        } finally {
+            endSyncCall();
+        }
+    }
+
+    /**
+     * Delete a directory, without blocking
+     */
+    public ListenableFuture<EtcdResult> deleteDirectoryAsync(String key) throws EtcdClientException {
+        URI uri = buildKeyUri(key, "?dir=true");
         HttpDelete request = new HttpDelete(uri);
-        return syncExecute(request, new int[] { 202 });
+        return asyncExecute(request, new int[] { 202 });
     }
 
     /**
      * Sets a key to a new value, if the value is a specified value
      */
     public EtcdResult cas(String key, String prevValue, String value) throws EtcdClientException {
+        beginSyncCall();
+        try {
+            return syncGet(casAsync(key, prevValue, value));
+        } finally {
+            endSyncCall();
+        }
+    }
+
+    /**
+     * Sets a key to a new value, if the value is a specified value, without blocking
+     */
+    public ListenableFuture<EtcdResult> casAsync(String key, String prevValue, String value) throws EtcdClientException {
         List<BasicNameValuePair> data = Lists.newArrayList();
         data.add(new BasicNameValuePair("value", value));
         data.add(new BasicNameValuePair("prevValue", prevValue));
@@ -145,6 +633,145 @@ public class EtcdClient {
         return set0(key, data, new int[] { 200, 412 }, 101);
     }
 
+    /**
+     * Sets a key to a new value with an (optional) ttl, if the value is a specified value. Also refreshes the ttl of a
+     * key that is still held, by setting it to the value it already has.
+     */
+    public EtcdResult cas(String key, String prevValue, String value, Integer ttl) throws EtcdClientException {
+        beginSyncCall();
+        try {
+            return syncGet(casAsync(key, prevValue, value, ttl));
+        } finally {
+            endSyncCall();
+        }
+    }
+
+    /**
+     * Sets a key to a new value with an (optional) ttl, if the value is a specified value, without blocking
+     */
+    public ListenableFuture<EtcdResult> casAsync(String key, String prevValue, String value, Integer ttl)
+            throws EtcdClientException {
+        List<BasicNameValuePair> data = Lists.newArrayList();
+        data.add(new BasicNameValuePair("value", value));
+        data.add(new BasicNameValuePair("prevValue", prevValue));
+        if (ttl != null) {
+            data.add(new BasicNameValuePair("ttl", Integer.toString(ttl)));
+        }
+
+        return set0(key, data, new int[] { 200, 412 }, 101);
+    }
+
+    /**
+     * Creates a key with an (optional) ttl, if it does not already exist. If it does, the result is an error (105).
+     */
+    public EtcdResult create(String key, String value, Integer ttl) throws EtcdClientException {
+        beginSyncCall();
+        try {
+            return syncGet(createAsync(key, value, ttl));
+        } finally {
+            endSyncCall();
+        }
+    }
+
+    /**
+     * Creates a key with an (optional) ttl, if it does not already exist, without blocking
+     */
+    public ListenableFuture<EtcdResult> createAsync(String key, String value, Integer ttl)
+            throws EtcdClientException {
+        List<BasicNameValuePair> data = Lists.newArrayList();
+        data.add(new BasicNameValuePair("value", value));
+        data.add(new BasicNameValuePair("prevExist", "false"));
+        if (ttl != null) {
+            data.add(new BasicNameValuePair("ttl", Integer.toString(ttl)));
+        }
+
+        return set0(key, data, new int[] { 200, 201, 412 }, 105);
+    }
+
+    /**
+     * Creates a key with an (optional) ttl beneath a directory, named so that keys sort in the order they were created
+     */
+    public EtcdResult createInOrder(String dir, String value, Integer ttl) throws EtcdClientException {
+        beginSyncCall();
+        try {
+            return syncGet(createInOrderAsync(dir, value, ttl));
+        } finally {
+            endSyncCall();
+        }
+    }
+
+    /**
+     * Creates an in-order key beneath a directory, without blocking
+     */
+    public ListenableFuture<EtcdResult> createInOrderAsync(String dir, String value, Integer ttl)
+            throws EtcdClientException {
+        List<BasicNameValuePair> data = Lists.newArrayList();
+        data.add(new BasicNameValuePair("value", value));
+        if (ttl != null) {
+            data.add(new BasicNameValuePair("ttl", Integer.toString(ttl)));
+        }
+
+        HttpPost request = new HttpPost(buildKeyUri(dir, ""));
+        request.setEntity(new UrlEncodedFormEntity(data, Charsets.UTF_8));
+
+        return asyncExecute(request, new int[] { 200, 201 });
+    }
+
+    /**
+     * Deletes a key, if the value is a specified value. If it is not, the result is an error (101); if the key does
+     * not exist, the result is null.
+     */
+    public EtcdResult compareAndDelete(String key, String prevValue) throws EtcdClientException {
+        beginSyncCall();
+        try {
+            return syncGet(compareAndDeleteAsync(key, prevValue));
+        } finally {
+            endSyncCall();
+        }
+    }
+
+    /**
+     * Deletes a key, if the value is a specified value, without blocking
+     */
+    public ListenableFuture<EtcdResult> compareAndDeleteAsync(String key, String prevValue)
+            throws EtcdClientException {
+        return compareAndDelete0(buildKeyUri(key, "?prevValue=" + urlEscape(prevValue)));
+    }
+
+    private ListenableFuture<EtcdResult> compareAndDelete0(URI uri) throws EtcdClientException {
+        HttpDelete request = new HttpDelete(uri);
+
+        return Futures.transform(asyncExecute(request, new int[] { 200, 404, 412 }, 100, 101),
+                new Function<EtcdResult, EtcdResult>() {
+                    public EtcdResult apply(EtcdResult result) {
+                        if (result != null && result.isError() && result.errorCode == 100) {
+                            return null;
+                        }
+                        return result;
+                    }
+                });
+    }
+
+    /**
+     * Deletes a key, if it has not been modified since the given index. If it has, the result is an error (101); if the
+     * key does not exist, the result is null.
+     */
+    public EtcdResult compareAndDelete(String key, long prevIndex) throws EtcdClientException {
+        beginSyncCall();
+        try {
+            return syncGet(compareAndDeleteAsync(key, prevIndex));
+        } finally {
+            endSyncCall();
+        }
+    }
+
+    /**
+     * Deletes a key, if it has not been modified since the given index, without blocking
+     */
+    public ListenableFuture<EtcdResult> compareAndDeleteAsync(String key, long prevIndex) throws EtcdClientException {
+        return compareAndDelete0(buildKeyUri(key, "?prevIndex=" + prevIndex));
+    }
+
     /**
      * Watches the given subtree
      */
@@ -163,18 +790,27 @@ public class EtcdClient {
     	if (recursive) {
     		suffix += "&recursive=true";
     	}
-        URI uri = buildKeyUri("v2/keys", key, suffix);
+        URI uri = buildKeyUri(key, suffix);
 
         HttpGet request = new HttpGet(uri);
 
         return asyncExecute(request, new int[] { 200 });
     }
 
+    /**
+     * Follows the given key (or subtree) continuously, delivering every change to the listener
+     */
+    public EtcdWatchStream watchStream(String key, Long index, boolean recursive, EtcdWatchListener listener) {
+        EtcdWatchStream stream = new EtcdWatchStream(this, key, index, recursive, listener);
+        stream.start();
+        return stream;
+    }
+
     /**
      * Gets the etcd version
      */
     public String getVersion() throws EtcdClientException {
-        URI uri = baseUri.resolve("version");
+        URI uri = VERSION_URI;
 
         HttpGet request = new HttpGet(uri);
 
@@ -187,40 +823,272 @@ public class EtcdClient {
         return s.json;
     }
 
-    private EtcdResult set0(String key, List<BasicNameValuePair> data, int[] httpErrorCodes, int... expectedErrorCodes)
-            throws EtcdClientException {
-        URI uri = buildKeyUri("v2/keys", key, "");
+    private ListenableFuture<EtcdResult> set0(String key, List<BasicNameValuePair> data, int[] httpErrorCodes,
+            int... expectedErrorCodes) throws EtcdClientException {
+        URI uri = buildKeyUri(key, "");
 
         HttpPut request = new HttpPut(uri);
 
         UrlEncodedFormEntity entity = new UrlEncodedFormEntity(data, Charsets.UTF_8);
         request.setEntity(entity);
 
-        return syncExecute(request, httpErrorCodes, expectedErrorCodes);
+        return asyncExecute(request, httpErrorCodes, expectedErrorCodes);
     }
 
     public EtcdResult listChildren(String key) throws EtcdClientException {
-        URI uri = buildKeyUri("v2/keys", key, "/");
+        beginSyncCall();
+        try {
+            return syncGet(listChildrenAsync(key));
+        } finally {
+            endSyncCall();
+        }
+    }
+
+    /**
+     * Lists the children of the given key, without blocking
+     */
+    public ListenableFuture<EtcdResult> listChildrenAsync(String key) throws EtcdClientException {
+        URI uri = buildKeyUri(key, "/");
+
+        return asyncRead(uri, new int[] { 200 });
+    }
+
+    /**
+     * Reads a key and (optionally) everything beneath it into a compact, array-based tree. Returns null if not found.
+     */
+    public EtcdCompactTree getCompact(String key, boolean recursive) throws EtcdClientException {
+        beginSyncCall();
+        try {
+            return syncGet(getCompactAsync(key, recursive));
+        } finally {
+            endSyncCall();
+        }
+    }
+
+    /**
+     * Reads a key and (optionally) everything beneath it into a compact tree, without blocking. The future yields null
+     * if the key is not found.
+     */
+    public ListenableFuture<EtcdCompactTree> getCompactAsync(String key, boolean recursive) throws EtcdClientException {
+        URI uri = buildKeyUri(key, recursive ? "?recursive=true" : "");
+        HttpGet request = new HttpGet(uri);
+
+        final EtcdCompactTree.Reader reader = new EtcdCompactTree.Reader();
+        return Futures.transform(asyncExecute(request, new int[] { 200, 404 }, reader, 100),
+                new Function<EtcdResult, EtcdCompactTree>() {
+                    public EtcdCompactTree apply(EtcdResult result) {
+                        if (result == null || result.isError() || reader.size == 0) {
+                            return null;
+                        }
+                        return reader.build(result.etcdIndex);
+                    }
+                });
+    }
+
+    /**
+     * The keep-alive that the recipes (such as {@link EtcdLock}) use, which can also keep other keys alive
+     */
+    public EtcdKeepAlive getKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Walks everything beneath the key depth-first, reading one directory at a time
+     */
+    public EtcdTreeWalker walk(String key) {
+        return new EtcdTreeWalker(this, key);
+    }
+
+    /**
+     * Walks the subtree depth-first, descending only into directories that match the predicate
+     */
+    public EtcdTreeWalker walk(String key, Predicate<? super EtcdNode> descend) {
+        return new EtcdTreeWalker(this, key, descend, EtcdTreeWalker.DEFAULT_CONCURRENCY);
+    }
+
+    /**
+     * Reads a key and (optionally) everything beneath it, passing each node beneath the key to the visitor as it is
+     * decoded instead of building the tree in memory. Returns the key's own node (without children), or null if not
+     * found.
+     */
+    public EtcdResult visit(String key, boolean recursive, EtcdNodeVisitor visitor) throws EtcdClientException {
+        beginSyncCall();
+        try {
+            return syncGet(visitAsync(key, recursive, visitor));
+        } finally {
+            endSyncCall();
+        }
+    }
+
+    /**
+     * Reads a key and (optionally) everything beneath it, passing each node to the visitor, without blocking. The
+     * visitor is called from the I/O thread that received the response.
+     */
+    public ListenableFuture<EtcdResult> visitAsync(String key, boolean recursive, EtcdNodeVisitor visitor)
+            throws EtcdClientException {
+        URI uri = buildKeyUri(key, recursive ? "?recursive=true" : "");
         HttpGet request = new HttpGet(uri);
 
-        EtcdResult result = syncExecute(request, new int[] { 200 });
-        return result;
-    }
+        return Futures.transform(asyncExecute(request, new int[] { 200, 404 }, EtcdJson.visiting(visitor), 100),
+                new Function<EtcdResult, EtcdResult>() {
+                    public EtcdResult apply(EtcdResult result) {
+                        if (result != null && result.isError() && result.errorCode == 100) {
+                            return null;
+                        }
+                        return result;
+                    }
+                });
+    }
+
+    protected ListenableFuture<EtcdResult> asyncExecute(HttpUriRequest request, int[] expectedHttpStatusCodes, int... expectedErrorCodes)
+            throws EtcdClientException {
+        return asyncExecute(request, expectedHttpStatusCodes, EtcdJson.TREE, expectedErrorCodes);
+    }
+
+    /**
+     * Sends a GET, or (if reads are coalesced) joins an identical GET already in flight
+     */
+    protected ListenableFuture<EtcdResult> asyncRead(final URI uri, int[] expectedHttpStatusCodes,
+            int... expectedErrorCodes) throws EtcdClientException {
+        if (!config.coalesceReads) {
+            return asyncExecute(new HttpGet(uri), expectedHttpStatusCodes, expectedErrorCodes);
+        }
+
+        ListenableFuture<EtcdResult> flight = inFlightReads.get(uri);
+        if (flight == null) {
+            final SettableFuture<EtcdResult> started = SettableFuture.create();
+            flight = inFlightReads.putIfAbsent(uri, started);
+            if (flight == null) {
+                flight = started;
+                started.addListener(new Runnable() {
+                    public void run() {
+                        inFlightReads.remove(uri, started);
+                    }
+                }, MoreExecutors.sameThreadExecutor());
+                try {
+                    forward(asyncExecute(new HttpGet(uri), expectedHttpStatusCodes, expectedErrorCodes), started);
+                } catch (EtcdClientException e) {
+                    started.setException(e);
+                    throw e;
+                }
+            }
+        }
+
+        // Each caller gets its own future, so one caller cancelling does not cancel the others
+        SettableFuture<EtcdResult> result = SettableFuture.create();
+        forward(flight, result);
+        return result;
+    }
+
+    static <T> void forward(final ListenableFuture<T> from, final SettableFuture<T> to) {
+        from.addListener(new Runnable() {
+            public void run() {
+                try {
+                    to.set(Uninterruptibles.getUninterruptibly(from));
+                } catch (ExecutionException e) {
+                    to.setException(e.getCause());
+                } catch (CancellationException e) {
+                    to.cancel(false);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    /**
+     * Sends a request and decodes the response as it is read, using the given reader for the node
+     */
+    protected ListenableFuture<EtcdResult> asyncExecute(HttpUriRequest request, final int[] expectedHttpStatusCodes,
+            final EtcdJson.NodeReader nodeReader, final int... expectedErrorCodes) throws EtcdClientException {
+        final EtcdClientListener listener = this.listener;
+        final String operation = listener != null ? operationOf(request) : null;
+        final long start = listener != null ? System.nanoTime() : 0;
+        if (listener != null) {
+            listener.operationStarted(operation);
+        }
+
+        ListenableFuture<HttpResponse> response = asyncExecuteRouted(request);
+        final ListenableFuture<EtcdResult> result = Futures.transform(response,
+                new AsyncFunction<HttpResponse, EtcdResult>() {
+                    public ListenableFuture<EtcdResult> apply(HttpResponse httpResponse) throws Exception {
+                        long decodeStart = listener != null ? System.nanoTime() : 0;
+                        EtcdResult result = extractEtcdResult(httpResponse, expectedHttpStatusCodes, nodeReader,
+                                expectedErrorCodes);
+                        if (listener != null) {
+                            listener.responseDecoded(operation, System.nanoTime() - decodeStart);
+                        }
+                        return Futures.immediateFuture(result);
+                    }
+                });
+
+        if (listener == null) {
+            return result;
+        }
 
-    protected ListenableFuture<EtcdResult> asyncExecute(HttpUriRequest request, int[] expectedHttpStatusCodes, final int... expectedErrorCodes)
-            throws EtcdClientException {
-        ListenableFuture<JsonResponse> json = asyncExecuteJson(request, expectedHttpStatusCodes);
-        return Futures.transform(json, new AsyncFunction<JsonResponse, EtcdResult>() {
-            public ListenableFuture<EtcdResult> apply(JsonResponse json) throws Exception {
-                EtcdResult result = jsonToEtcdResult(json, expectedErrorCodes);
-                return Futures.immediateFuture(result);
+        // Report the outcome before the caller can see it
+        final SettableFuture<EtcdResult> instrumented = SettableFuture.create();
+        result.addListener(new Runnable() {
+            public void run() {
+                long latency = System.nanoTime() - start;
+                EtcdResult etcdResult;
+                try {
+                    etcdResult = Uninterruptibles.getUninterruptibly(result);
+                } catch (ExecutionException e) {
+                    listener.operationFailed(operation, latency, e.getCause());
+                    instrumented.setException(e.getCause());
+                    return;
+                } catch (CancellationException e) {
+                    listener.operationFailed(operation, latency, e);
+                    instrumented.cancel(false);
+                    return;
+                }
+                int errorCode = etcdResult != null && etcdResult.errorCode != null ? etcdResult.errorCode : 0;
+                listener.operationCompleted(operation, latency, errorCode);
+                instrumented.set(etcdResult);
             }
-        });
+        }, MoreExecutors.sameThreadExecutor());
+        instrumented.addListener(new Runnable() {
+            public void run() {
+                if (instrumented.isCancelled()) {
+                    result.cancel(true);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return instrumented;
+    }
+
+    /**
+     * Names the operation a request performs, for instrumentation
+     */
+    static String operationOf(HttpUriRequest request) {
+        String method = request.getMethod();
+        if (method.equals(HttpGet.METHOD_NAME)) {
+            return isLongPoll(request) ? "watch" : "get";
+        } else if (method.equals(HttpPut.METHOD_NAME)) {
+            return "set";
+        } else if (method.equals(HttpDelete.METHOD_NAME)) {
+            return "delete";
+        } else if (method.equals(HttpPost.METHOD_NAME)) {
+            return "create";
+        }
+        return method;
     }
 
     protected EtcdResult syncExecute(HttpUriRequest request, int[] expectedHttpStatusCodes, int... expectedErrorCodes) throws EtcdClientException {
+        beginSyncCall();
+        try {
+            return syncGet(asyncExecute(request, expectedHttpStatusCodes, expectedErrorCodes));
+        } finally {
+            endSyncCall();
+        }
+    }
+
+    /**
+     * Blocks for the result of one of the async operations, unwrapping any failure
+     */
+    protected static <T> T syncGet(ListenableFuture<T> future) throws EtcdClientException {
+        runSyncCall();
         try {
-            return asyncExecute(request, expectedHttpStatusCodes, expectedErrorCodes).get();
+            return future.get();
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
 
@@ -228,11 +1096,9 @@ public class EtcdClient {
         } catch (ExecutionException e) {
             throw unwrap(e);
         }
-        // String json = syncExecuteJson(request);
-        // return jsonToEtcdResult(json, expectedErrorCodes);
     }
 
-    private EtcdClientException unwrap(ExecutionException e) {
+    private static EtcdClientException unwrap(ExecutionException e) {
         Throwable cause = e.getCause();
         if (cause instanceof EtcdClientException) {
             return (EtcdClientException) cause;
@@ -240,28 +1106,99 @@ public class EtcdClient {
         return new EtcdClientException("Error executing request", e);
     }
 
-    private EtcdResult jsonToEtcdResult(JsonResponse response, int... expectedErrorCodes) throws EtcdClientException {
-        if (response == null || response.json == null) {
-            return null;
+    protected EtcdResult extractEtcdResult(HttpResponse httpResponse, int[] expectedHttpStatusCodes,
+            EtcdJson.NodeReader nodeReader, int... expectedErrorCodes) throws EtcdClientException {
+        try {
+            StatusLine statusLine = httpResponse.getStatusLine();
+            int statusCode = statusLine.getStatusCode();
+            HttpEntity entity = httpResponse.getEntity();
+
+            if (!contains(expectedHttpStatusCodes, statusCode)) {
+                if (statusCode == 400 && entity != null) {
+                    // More information in JSON
+                } else {
+                    throw new EtcdClientException("Error response from etcd: " + statusLine.getReasonPhrase(),
+                            statusCode);
+                }
+            }
+
+            if (entity == null) {
+                return null;
+            }
+
+            EtcdResult result;
+            JsonReader reader = null;
+            try {
+                reader = openJsonReader(entity);
+                result = EtcdJson.readResult(reader, nodeReader);
+            } catch (MalformedJsonException e) {
+                throw new EtcdClientException("Error parsing response from etcd", e);
+            } catch (IllegalStateException e) {
+                throw new EtcdClientException("Error parsing response from etcd", e);
+            } catch (NumberFormatException e) {
+                throw new EtcdClientException("Error parsing response from etcd", e);
+            } catch (EtcdClientException e) {
+                throw e;
+            } catch (IOException e) {
+                throw new EtcdClientException("Error reading response", e);
+            } finally {
+                closeQuietly(reader);
+            }
+            if (result == null) {
+                return null;
+            }
+            result.etcdIndex = getEtcdIndex(httpResponse);
+
+            if (result.isError()) {
+                if (!contains(expectedErrorCodes, result.errorCode)) {
+                    throw new EtcdClientException(result.message, result);
+                }
+            }
+            return result;
+        } finally {
+            close(httpResponse);
         }
-        EtcdResult result = parseEtcdResult(response.json);
+    }
 
-        if (result.isError()) {
-            if (!contains(expectedErrorCodes, result.errorCode)) {
-                throw new EtcdClientException(result.message, result);
+    static JsonReader openJsonReader(HttpEntity entity) throws IOException {
+        Charset charset = null;
+        try {
+            ContentType contentType = ContentType.get(entity);
+            if (contentType != null) {
+                charset = contentType.getCharset();
             }
+        } catch (RuntimeException e) {
+            // Unparseable or unsupported content type; JSON is UTF-8 unless told otherwise
         }
-        return result;
+        if (charset == null) {
+            charset = Charsets.UTF_8;
+        }
+        JsonReader reader = new JsonReader(new InputStreamReader(entity.getContent(), charset));
+        reader.setLenient(true);
+        return reader;
     }
 
-    private EtcdResult parseEtcdResult(String json) throws EtcdClientException {
-        EtcdResult result;
+    static void closeQuietly(JsonReader reader) {
+        if (reader == null) {
+            return;
+        }
         try {
-            result = gson.fromJson(json, EtcdResult.class);
-        } catch (JsonParseException e) {
-            throw new EtcdClientException("Error parsing response from etcd", e);
+            reader.close();
+        } catch (IOException e) {
+            log.debug("Error closing response reader", e);
         }
-        return result;
+    }
+
+    static Long getEtcdIndex(HttpResponse httpResponse) {
+        Header etcdIndexHeader = httpResponse.getFirstHeader("X-Etcd-Index");
+        if (etcdIndexHeader != null) {
+            try {
+                return Long.valueOf(etcdIndexHeader.getValue());
+            } catch (NumberFormatException e) {
+                // Ignore; not all versions of etcd send it
+            }
+        }
+        return null;
     }
 
     private static boolean contains(int[] list, int find) {
@@ -274,60 +1211,55 @@ public class EtcdClient {
     }
 
     protected List<EtcdResult> syncExecuteList(HttpUriRequest request) throws EtcdClientException {
-        JsonResponse response = syncExecuteJson(request, 200);
-        if (response.json == null) {
-            return null;
-        }
-
-        if (response.httpStatusCode != 200) {
-            EtcdResult etcdResult = parseEtcdResult(response.json);
-            throw new EtcdClientException("Error listing keys", etcdResult);
+        HttpResponse httpResponse;
+        beginSyncCall();
+        try {
+            httpResponse = syncGet(asyncExecuteRouted(request));
+        } finally {
+            endSyncCall();
         }
-
         try {
-            List<EtcdResult> ret = new ArrayList<EtcdResult>();
-            JsonParser parser = new JsonParser();
-            JsonArray array = parser.parse(response.json).getAsJsonArray();
-            for (int i = 0; i < array.size(); i++) {
-                EtcdResult next = gson.fromJson(array.get(i), EtcdResult.class);
-                ret.add(next);
+            int statusCode = httpResponse.getStatusLine().getStatusCode();
+            HttpEntity entity = httpResponse.getEntity();
+            if (entity == null) {
+                return null;
             }
-            return ret;
-        } catch (JsonParseException e) {
-            throw new EtcdClientException("Error parsing response from etcd", e);
+
+            JsonReader reader = null;
+            try {
+                reader = openJsonReader(entity);
+                if (statusCode != 200) {
+                    EtcdResult etcdResult = EtcdJson.readResult(reader);
+                    throw new EtcdClientException("Error listing keys", etcdResult);
+                }
+                return EtcdJson.readResults(reader);
+            } catch (MalformedJsonException e) {
+                throw new EtcdClientException("Error parsing response from etcd", e);
+            } catch (IllegalStateException e) {
+                throw new EtcdClientException("Error parsing response from etcd", e);
+            } catch (NumberFormatException e) {
+                throw new EtcdClientException("Error parsing response from etcd", e);
+            } catch (IOException e) {
+                throw new EtcdClientException("Error reading response", e);
+            } finally {
+                closeQuietly(reader);
+            }
+        } finally {
+            close(httpResponse);
         }
     }
 
     protected JsonResponse syncExecuteJson(HttpUriRequest request, int... expectedHttpStatusCodes) throws EtcdClientException {
+        beginSyncCall();
         try {
-            return asyncExecuteJson(request, expectedHttpStatusCodes).get();
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw new EtcdClientException("Interrupted during request processing", e);
-        } catch (ExecutionException e) {
-            throw unwrap(e);
+            return syncGet(asyncExecuteJson(request, expectedHttpStatusCodes));
+        } finally {
+            endSyncCall();
         }
-
-        // ListenableFuture<HttpResponse> response = asyncExecuteHttp(request);
-        //
-        // HttpResponse httpResponse;
-        // try {
-        // httpResponse = response.get();
-        // } catch (InterruptedException e) {
-        // Thread.currentThread().interrupt();
-        // throw new
-        // EtcdClientException("Interrupted during request processing", e);
-        // } catch (ExecutionException e) {
-        // // TODO: Unwrap?
-        // throw new EtcdClientException("Error executing request", e);
-        // }
-        //
-        // String json = parseJsonResponse(httpResponse);
-        // return json;
     }
 
     protected ListenableFuture<JsonResponse> asyncExecuteJson(HttpUriRequest request, final int[] expectedHttpStatusCodes) throws EtcdClientException {
-        ListenableFuture<HttpResponse> response = asyncExecuteHttp(request);
+        ListenableFuture<HttpResponse> response = asyncExecuteRouted(request);
 
         return Futures.transform(response, new AsyncFunction<HttpResponse, JsonResponse>() {
             public ListenableFuture<JsonResponse> apply(HttpResponse httpResponse) throws Exception {
@@ -343,10 +1275,12 @@ public class EtcdClient {
     static class JsonResponse {
         final String json;
         final int httpStatusCode;
+        final Long etcdIndex;
 
-        public JsonResponse(String json, int statusCode) {
+        public JsonResponse(String json, int statusCode, Long etcdIndex) {
             this.json = json;
             this.httpStatusCode = statusCode;
+            this.etcdIndex = etcdIndex;
         }
 
     }
@@ -375,34 +1309,346 @@ public class EtcdClient {
                 }
             }
 
-            return new JsonResponse(json, statusCode);
+            return new JsonResponse(json, statusCode, getEtcdIndex(httpResponse));
         } finally {
             close(httpResponse);
         }
     }
 
-    private URI buildKeyUri(String prefix, String key, String suffix) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(prefix);
-        if (key.startsWith("/")) {
-            key = key.substring(1);
-        }
-        for (String token : Splitter.on('/').split(key)) {
-            sb.append("/");
-            sb.append(urlEscape(token));
+    /**
+     * Builds the URI of a key, relative to the root of a cluster member. URIs of plain keys (no query) are cached, so
+     * hot keys are not re-encoded or re-parsed.
+     */
+    URI buildKeyUri(String key, String suffix) {
+        boolean cacheable = suffix.isEmpty();
+        if (cacheable) {
+            URI uri = keyUris.get(key);
+            if (uri != null) {
+                return uri;
+            }
         }
+
+        String path = EtcdKeys.encodePath(key);
+        StringBuilder sb = new StringBuilder(KEYS_PATH.length() + path.length() + suffix.length());
+        sb.append(KEYS_PATH);
+        sb.append(path);
         sb.append(suffix);
+        URI uri = URI.create(sb.toString());
 
-        URI uri = baseUri.resolve(sb.toString());
+        if (cacheable) {
+            if (keyUris.size() >= KEY_URI_CACHE_SIZE) {
+                // Crude, but cheap: start again, and let the keys that are still hot come back
+                keyUris.clear();
+            }
+            keyUris.put(key, uri);
+        }
         return uri;
     }
 
-    protected ListenableFuture<HttpResponse> asyncExecuteHttp(HttpUriRequest request) {
+    /**
+     * Sends a request, whose URI is a path from the root of a member, to a member of the cluster
+     */
+    protected ListenableFuture<HttpResponse> asyncExecuteRouted(HttpUriRequest request) {
+        RoutedExecution execution = new RoutedExecution(request);
+        execution.start();
+        return execution.result;
+    }
+
+    /**
+     * A request in flight against the cluster. Connection failures mark the member as unavailable and move on to the
+     * next member, and once every member has been tried the request is retried after a backoff, as the retry policy
+     * allows; reads can always be retried, but writes only when safe. Writes that a follower redirects are re-sent to
+     * the leader. A slow read may be hedged: sent to a second member as well, with the first response winning.
+     */
+    class RoutedExecution {
+        static final int MAX_REDIRECTS = 3;
+
+        final HttpUriRequest request;
+        final boolean write;
+        final boolean longPoll;
+        final SettableFuture<HttpResponse> result = SettableFuture.create();
+
+        // Guarded by this
+        final List<Endpoint> tried = new ArrayList<Endpoint>();
+        final List<ListenableFuture<HttpResponse>> attempts = new ArrayList<ListenableFuture<HttpResponse>>();
+        int redirects;
+        int retries;
+        boolean done;
+        ScheduledFuture<?> timer;
+
+        RoutedExecution(HttpUriRequest request) {
+            this.request = request;
+            this.write = !request.getMethod().equals(HttpGet.METHOD_NAME);
+            this.longPoll = isLongPoll(request);
+
+            result.addListener(new Runnable() {
+                public void run() {
+                    if (result.isCancelled()) {
+                        cancelAttempts();
+                    }
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+
+        synchronized void start() {
+            retryBudget.requestSent();
+            attempt();
+
+            long hedgeDelay = readLatency.estimate();
+            if (retryPolicy.hedgeReads && !write && !longPoll && hedgeDelay >= 0 && endpoints.size() > 1) {
+                hedgeDelay = Math.max(hedgeDelay, TimeUnit.MILLISECONDS.toNanos(retryPolicy.minHedgeDelay));
+                schedule(new Runnable() {
+                    public void run() {
+                        hedge();
+                    }
+                }, hedgeDelay, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        /**
+         * Sends the request to the next member; called holding the lock
+         */
+        void attempt() {
+            final Endpoint endpoint = endpoints.select(write, tried);
+            tried.add(endpoint);
+
+            // The client works on a wrapper, so the request itself can be re-sent as it is when the member is at the root
+            URI target = endpoint.target(request.getURI());
+            HttpUriRequest concrete = target == request.getURI() ? request : RequestBuilder.copy(request)
+                    .setUri(target).build();
+            endpoint.inFlight.incrementAndGet();
+            final long sentAt = System.nanoTime();
+            final ListenableFuture<HttpResponse> response = asyncExecuteHttp(endpoint.host, concrete);
+            attempts.add(response);
+
+            response.addListener(new Runnable() {
+                public void run() {
+                    endpoint.inFlight.decrementAndGet();
+                    HttpResponse httpResponse;
+                    try {
+                        httpResponse = Uninterruptibles.getUninterruptibly(response);
+                    } catch (ExecutionException e) {
+                        failed(response, endpoint, e.getCause());
+                        return;
+                    } catch (CancellationException e) {
+                        synchronized (RoutedExecution.this) {
+                            attempts.remove(response);
+                        }
+                        return;
+                    }
+                    succeeded(response, endpoint, httpResponse, System.nanoTime() - sentAt);
+                }
+            }, MoreExecutors.sameThreadExecutor());
+        }
+
+        void succeeded(ListenableFuture<HttpResponse> attempt, Endpoint endpoint, HttpResponse httpResponse,
+                long latency) {
+            endpoints.succeeded(endpoint);
+
+            List<ListenableFuture<HttpResponse>> losers;
+            synchronized (this) {
+                attempts.remove(attempt);
+                if (done) {
+                    close(httpResponse);
+                    return;
+                }
+
+                if (write && httpResponse.getStatusLine().getStatusCode() == 307 && redirects < MAX_REDIRECTS) {
+                    Header location = httpResponse.getFirstHeader("Location");
+                    if (location != null) {
+                        close(httpResponse);
+                        endpoints.redirectedTo(URI.create(location.getValue()));
+                        redirects++;
+                        tried.clear();
+                        attempt();
+                        return;
+                    }
+                }
+
+                done = true;
+                losers = finish();
+            }
+
+            if (!write && !longPoll) {
+                readLatency.record(latency);
+            }
+            cancel(losers);
+            if (!result.set(httpResponse)) {
+                close(httpResponse);
+            }
+        }
+
+        void failed(ListenableFuture<HttpResponse> attempt, Endpoint endpoint, Throwable t) {
+            boolean connectionFailure = isConnectionFailure(t);
+            if (connectionFailure) {
+                endpoints.failed(endpoint);
+            }
+
+            synchronized (this) {
+                attempts.remove(attempt);
+                if (done || !attempts.isEmpty()) {
+                    // Already answered, or a hedge is still in flight and may yet answer
+                    return;
+                }
+
+                if (connectionFailure && isRetryable(t)) {
+                    if (tried.size() < endpoints.size()) {
+                        log.debug("Request to {} failed; trying another member", endpoint, t);
+                        attempt();
+                        return;
+                    }
+                    if (retries < retryPolicy.maxRetries && retryBudget.tryRetry()) {
+                        long backoff = retryPolicy.backoff(retries);
+                        log.debug("Request to {} failed; retrying in {}ms", endpoint, backoff, t);
+                        retries++;
+                        tried.clear();
+                        if (listener != null) {
+                            listener.operationRetried(operationOf(request), false);
+                        }
+                        schedule(new Runnable() {
+                            public void run() {
+                                retry();
+                            }
+                        }, backoff, TimeUnit.MILLISECONDS);
+                        return;
+                    }
+                }
+
+                done = true;
+                finish();
+            }
+            result.setException(t);
+        }
+
+        synchronized void retry() {
+            timer = null;
+            if (!done) {
+                attempt();
+            }
+        }
+
+        synchronized void hedge() {
+            timer = null;
+            if (done || attempts.isEmpty() || tried.size() >= endpoints.size() || !retryBudget.tryRetry()) {
+                return;
+            }
+            if (listener != null) {
+                listener.operationRetried(operationOf(request), true);
+            }
+            attempt();
+        }
+
+        /**
+         * Checks if a request that failed at the connection level can safely be sent again
+         */
+        boolean isRetryable(Throwable t) {
+            if (!write) {
+                return true;
+            }
+            if (t instanceof ConnectException || t instanceof UnknownHostException) {
+                // The request was never sent
+                return true;
+            }
+            return retryPolicy.retryIdempotentWrites && isIdempotent(request);
+        }
+
+        /**
+         * Schedules a retry or hedge, replacing any already scheduled; called holding the lock
+         */
+        void schedule(Runnable runnable, long delay, TimeUnit unit) {
+            if (timer != null) {
+                timer.cancel(false);
+            }
+            timer = Scheduler.INSTANCE.schedule(runnable, delay, unit);
+        }
+
+        /**
+         * Stops the timer, and returns the attempts still in flight; called holding the lock
+         */
+        List<ListenableFuture<HttpResponse>> finish() {
+            if (timer != null) {
+                timer.cancel(false);
+                timer = null;
+            }
+            List<ListenableFuture<HttpResponse>> remaining = new ArrayList<ListenableFuture<HttpResponse>>(attempts);
+            attempts.clear();
+            return remaining;
+        }
+
+        void cancelAttempts() {
+            List<ListenableFuture<HttpResponse>> remaining;
+            synchronized (this) {
+                done = true;
+                remaining = finish();
+            }
+            cancel(remaining);
+        }
+
+        void cancel(List<ListenableFuture<HttpResponse>> attempts) {
+            for (ListenableFuture<HttpResponse> attempt : attempts) {
+                attempt.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Checks if a failure indicates a problem with the member, rather than with the request
+     */
+    static boolean isConnectionFailure(Throwable t) {
+        if (t instanceof EtcdClientException) {
+            return t.getCause() instanceof TimeoutException;
+        }
+        return t instanceof IOException;
+    }
+
+    /**
+     * Sends a request, whose URI is a path, to the given host
+     */
+    protected ListenableFuture<HttpResponse> asyncExecuteHttp(final HttpHost host, final HttpUriRequest request) {
+        if (pipelines != null && request.getMethod().equals(HttpGet.METHOD_NAME) && !isLongPoll(request)) {
+            final EtcdPipelines.Exchange exchange = pipelines.execute(host, request);
+            if (exchange != null) {
+                scheduleTimeout(exchange.future, request, new Runnable() {
+                    public void run() {
+                        exchange.timedOut();
+                    }
+                });
+                return Futures.withFallback(exchange.future, new FutureFallback<HttpResponse>() {
+                    public ListenableFuture<HttpResponse> create(Throwable t) {
+                        if (t instanceof EtcdPipelines.PipelineClosedException) {
+                            // The pipeline's connection dropped, which is no fault of the member; send it the usual way
+                            return asyncExecuteUnpipelined(host, request);
+                        }
+                        return Futures.immediateFailedFuture(t);
+                    }
+                });
+            }
+        }
+        return asyncExecuteUnpipelined(host, request);
+    }
+
+    ListenableFuture<HttpResponse> asyncExecuteUnpipelined(HttpHost host, final HttpUriRequest request) {
+        if (blockingHttpClient != null && !isLongPoll(request)) {
+            return executeBlocking(host, request);
+        }
+
         final SettableFuture<HttpResponse> future = SettableFuture.create();
 
-        httpClient.execute(request, new FutureCallback<HttpResponse>() {
+        final HttpContext context = new BasicHttpContext();
+        final EtcdClientListener listener = this.listener;
+        if (listener != null) {
+            context.setAttribute(SENT_AT, System.nanoTime());
+        }
+
+        final Future<HttpResponse> execution = httpClient.execute(host, request, context, new FutureCallback<HttpResponse>() {
             public void completed(HttpResponse result) {
-                future.set(result);
+                try {
+                    if (listener != null) {
+                        exchangeCompleted(listener, request, context, result);
+                    }
+                } finally {
+                    future.set(result);
+                }
             }
 
             public void failed(Exception ex) {
@@ -414,9 +1660,250 @@ public class EtcdClient {
             }
         });
 
+        scheduleTimeout(future, request, new Runnable() {
+            public void run() {
+                execution.cancel(true);
+            }
+        });
+
+        future.addListener(new Runnable() {
+            public void run() {
+                if (future.isCancelled()) {
+                    execution.cancel(true);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+
         return future;
     }
 
+    /**
+     * Fails the future if it has not completed within the request timeout, then calls <code>onTimeout</code>. Watches
+     * are long-polls, so the request timeout does not apply to them.
+     */
+    void scheduleTimeout(final SettableFuture<HttpResponse> future, HttpUriRequest request, final Runnable onTimeout) {
+        final long timeoutMillis = config.requestTimeout;
+        if (timeoutMillis <= 0 || isLongPoll(request)) {
+            return;
+        }
+        final ScheduledFuture<?> timer = Scheduler.INSTANCE.schedule(new Runnable() {
+            public void run() {
+                if (future.setException(new EtcdClientException("Request timed out after " + timeoutMillis + "ms",
+                        new TimeoutException()))) {
+                    onTimeout.run();
+                }
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        future.addListener(new Runnable() {
+            public void run() {
+                timer.cancel(false);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    /**
+     * A request for the blocking client
+     */
+    class BlockingRequest implements Runnable {
+        final HttpHost host;
+        final HttpUriRequest request;
+        final SettableFuture<HttpResponse> future = SettableFuture.create();
+        final AtomicBoolean started = new AtomicBoolean();
+
+        BlockingRequest(HttpHost host, HttpUriRequest request) {
+            this.host = host;
+            // Each send gets its own copy: an attempt and its hedge may share a request, and aborting one must not
+            // abort the other
+            this.request = RequestBuilder.copy(request).build();
+        }
+
+        public void run() {
+            if (!started.compareAndSet(false, true)) {
+                return;
+            }
+            HttpContext context = new BasicHttpContext();
+            if (listener != null) {
+                context.setAttribute(SENT_AT, System.nanoTime());
+            }
+            try {
+                HttpResponse response = blockingHttpClient.execute(host, request, context);
+                try {
+                    if (listener != null) {
+                        exchangeCompleted(listener, request, context, response);
+                    }
+                } finally {
+                    if (!future.set(response)) {
+                        close(response);
+                    }
+                }
+            } catch (IOException e) {
+                future.setException(e);
+            } catch (RuntimeException e) {
+                future.setException(e);
+            }
+        }
+
+        /**
+         * Stops the request from being sent, or aborts it if it already has been
+         */
+        void abort() {
+            if (!started.compareAndSet(false, true)) {
+                request.abort();
+            }
+        }
+    }
+
+    /**
+     * A synchronous call in progress on this thread, with the blocking transport
+     */
+    static class SyncCall {
+        // The call's first request, which the calling thread sends itself once it is ready to wait
+        BlockingRequest pending;
+    }
+
+    static final ThreadLocal<SyncCall> syncCalls = new ThreadLocal<SyncCall>();
+
+    /**
+     * Notes that the calling thread is about to make a request and wait for it, so with the blocking transport the
+     * request is sent from this thread rather than handed to another. Must be paired with {@link #endSyncCall()}, in
+     * a finally block.
+     */
+    void beginSyncCall() {
+        if (blockingHttpClient != null) {
+            syncCalls.set(new SyncCall());
+        }
+    }
+
+    /**
+     * Ends a synchronous call; a request it made but did not wait for (because it failed first) is sent from the pool
+     */
+    void endSyncCall() {
+        if (blockingHttpClient != null) {
+            SyncCall call = syncCalls.get();
+            syncCalls.remove();
+            if (call != null && call.pending != null) {
+                sendFromPool(call.pending);
+            }
+        }
+    }
+
+    /**
+     * Sends the synchronous call's request, if it has one waiting, on this thread. This happens once the call is ready
+     * to wait, so no lock is held and any hedge or timeout has already been scheduled.
+     */
+    static void runSyncCall() {
+        SyncCall call = syncCalls.get();
+        if (call != null) {
+            syncCalls.remove();
+            if (call.pending != null) {
+                call.pending.run();
+            }
+        }
+    }
+
+    /**
+     * Sends a request with the blocking client. A synchronous call's first request is left for the calling thread to
+     * send when it waits; anything else is sent from the pool.
+     */
+    ListenableFuture<HttpResponse> executeBlocking(HttpHost host, HttpUriRequest request) {
+        final BlockingRequest blocking = new BlockingRequest(host, request);
+        blocking.future.addListener(new Runnable() {
+            public void run() {
+                if (blocking.future.isCancelled()) {
+                    blocking.abort();
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        scheduleTimeout(blocking.future, request, new Runnable() {
+            public void run() {
+                blocking.abort();
+            }
+        });
+
+        SyncCall call = syncCalls.get();
+        if (call != null && call.pending == null) {
+            call.pending = blocking;
+        } else {
+            sendFromPool(blocking);
+        }
+        return blocking.future;
+    }
+
+    void sendFromPool(BlockingRequest blocking) {
+        try {
+            blockingExecutor.execute(blocking);
+        } catch (RejectedExecutionException e) {
+            // The client has been closed
+            blocking.future.setException(new IOException("Client closed"));
+        }
+    }
+
+    static void exchangeCompleted(EtcdClientListener listener, HttpUriRequest request, HttpContext context,
+            HttpResponse response) {
+        Long sentAt = (Long) context.getAttribute(SENT_AT);
+        Long connectedAt = (Long) context.getAttribute(CONNECTED_AT);
+        long connectionWait = sentAt != null && connectedAt != null ? connectedAt - sentAt : -1;
+
+        long bytesSent = 0;
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity != null) {
+                bytesSent = entity.getContentLength();
+            }
+        }
+        long bytesReceived = response.getEntity() != null ? response.getEntity().getContentLength() : 0;
+
+        listener.exchangeCompleted(operationOf(request), response.getStatusLine().getStatusCode(), connectionWait,
+                bytesSent, bytesReceived);
+    }
+
+    /**
+     * Checks if sending a request twice has the same outcome as sending it once: an unconditional set or delete.
+     * Creating a directory is not, as doing it again fails because the directory exists.
+     */
+    static boolean isIdempotent(HttpUriRequest request) {
+        String method = request.getMethod();
+        if (!method.equals(HttpPut.METHOD_NAME) && !method.equals(HttpDelete.METHOD_NAME)) {
+            return false;
+        }
+        if (hasCondition(URLEncodedUtils.parse(request.getURI(), "UTF-8"))) {
+            return false;
+        }
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity != null) {
+                try {
+                    if (!entity.isRepeatable() || hasCondition(URLEncodedUtils.parse(entity))) {
+                        return false;
+                    }
+                } catch (IOException e) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks for parameters that make a repeated write fail: a condition on the previous node, or making a directory
+     */
+    static boolean hasCondition(List<NameValuePair> params) {
+        for (NameValuePair param : params) {
+            if (param.getName().startsWith("prev")) {
+                return true;
+            }
+            if (param.getName().equals("dir") && "true".equals(param.getValue())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean isLongPoll(HttpUriRequest request) {
+        String query = request.getURI().getRawQuery();
+        return query != null && query.contains("wait=true");
+    }
+
     public static void close(HttpResponse response) {
         if (response == null) {
             return;
@@ -0,0 +1,88 @@
+package com.justinsb.etcd;
+
+/**
+ * Tuning for the HTTP connection pool behind an {@link EtcdClient}, and its instrumentation.
+ *
+ * Each client built with a config owns its own pool, so (for example) watch traffic and key/value traffic can be
+ * sized independently by using two clients with different configs. Timeouts are in milliseconds; 0 means no timeout.
+ */
+public class EtcdClientConfig {
+    /**
+     * Maximum open connections to a single etcd member
+     */
+    public int maxConnectionsPerRoute = 20;
+
+    /**
+     * Maximum open connections across all members
+     */
+    public int maxConnectionsTotal = 100;
+
+    /**
+     * Number of I/O reactor threads; defaults to the number of processors
+     */
+    public int ioThreadCount = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Timeout for establishing a connection
+     */
+    public int connectTimeout = 5000;
+
+    /**
+     * Overall timeout for a request, after which it is aborted. Watches are long-polls and are exempt.
+     */
+    public long requestTimeout = 0;
+
+    /**
+     * How long to wait for a connection from the pool when every connection is busy
+     */
+    public int connectionRequestTimeout = 0;
+
+    /**
+     * How long an idle connection is kept for reuse, when the server does not say; negative means indefinitely
+     */
+    public long keepAlive = 30000;
+
+    /**
+     * How long a cluster member is avoided after a connection failure
+     */
+    public long endpointFailureCooldown = 2000;
+
+    /**
+     * How requests that fail at the connection level are retried, and whether slow reads are hedged; null means
+     * {@link EtcdRetryPolicy#none()}
+     */
+    public EtcdRetryPolicy retryPolicy = new EtcdRetryPolicy();
+
+    /**
+     * Whether concurrent identical reads (get and listChildren of the same key) share one request. A read that joins
+     * one already in flight gets that request's result, which may be from just before it was called; results are
+     * shared between callers, so must not be modified.
+     */
+    public boolean coalesceReads = false;
+
+    /**
+     * Whether requests are sent with a blocking HTTP client rather than through the I/O reactor. A synchronous call
+     * sends its request on the calling thread, with no thread hand-offs, which suits many threads each making one call
+     * at a time; requests nobody waits for (the *Async methods) are queued for a pool of at most
+     * <code>maxConnectionsTotal</code> threads. Watches (long-polls) always go through the reactor.
+     */
+    public boolean blockingTransport = false;
+
+    /**
+     * Whether reads (gets and listings, but not watches) are pipelined over a single connection to each member: sent
+     * one after another without waiting for each response, so concurrent reads share a connection rather than taking
+     * one each. Responses come back in order, so a slow read delays those queued behind it. To share watches, use an
+     * {@link EtcdWatchHub}.
+     */
+    public boolean pipelineReads = false;
+
+    /**
+     * Maximum reads outstanding on a member's pipeline; further reads use the connection pool
+     */
+    public int maxPipelineDepth = 32;
+
+    /**
+     * Receives timings and counts for every request; null (the default) disables instrumentation
+     */
+    public EtcdClientListener listener;
+}
@@ -0,0 +1,51 @@
+package com.justinsb.etcd;
+
+/**
+ * Observes the requests an {@link EtcdClient} makes, for metrics and tracing. Set it on
+ * {@link EtcdClientConfig#listener}; when none is set, the client does no timing at all.
+ *
+ * Callbacks are made from the calling thread or from I/O threads, so they must be thread-safe and quick; anything they
+ * throw is logged and ignored. The operation is one of "get", "set", "delete", "create", "watch" or (for anything
+ * else) the HTTP method. Times are in nanoseconds.
+ */
+public interface EtcdClientListener {
+    /**
+     * An operation was started; it stays in flight until it completes or fails
+     */
+    void operationStarted(String operation);
+
+    /**
+     * An HTTP exchange with a member completed. An operation makes more than one exchange if it is retried on another
+     * member or redirected to the leader. The connection wait is the time from sending the request until it was given
+     * a connection, including any time to connect.
+     */
+    void exchangeCompleted(String operation, int httpStatusCode, long connectionWaitNanos, long bytesSent,
+            long bytesReceived);
+
+    /**
+     * A response was decoded
+     */
+    void responseDecoded(String operation, long decodeNanos);
+
+    /**
+     * An operation completed; the error code is the etcd error code of an expected error result (e.g. 100 for a
+     * missing key), or 0
+     */
+    void operationCompleted(String operation, long latencyNanos, int errorCode);
+
+    /**
+     * An operation failed
+     */
+    void operationFailed(String operation, long latencyNanos, Throwable t);
+
+    /**
+     * An operation is being sent again: after a connection failure (once every member has been tried), or as a hedge
+     * because the first attempt is slow
+     */
+    void operationRetried(String operation, boolean hedge);
+
+    /**
+     * A watch stream issued its next poll; a resync is a re-read after etcd discarded the history the stream needed
+     */
+    void watchRearmed(String key, boolean resync);
+}
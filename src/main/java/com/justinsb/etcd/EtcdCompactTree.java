@@ -0,0 +1,417 @@
+package com.justinsb.etcd;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * A read-only listing held in flat arrays rather than as a tree of {@link EtcdNode} objects, for large snapshots.
+ *
+ * Nodes are numbered in depth-first order, with the listed key at 0. Each node stores only the last segment of its key
+ * (repeated segments share one string), its value as UTF-8 bytes, and its indexes, TTL and expiration (as epoch millis)
+ * in primitive arrays, so there is no per-node object, list or boxed number. The tree is decoded straight from the
+ * response; {@link #node(int)} builds an {@link EtcdNode} for code that needs one.
+ */
+public class EtcdCompactTree {
+    static final byte DIR = 1;
+
+    // Set when the key does not extend the parent's key, so the full key is stored
+    static final byte ABSOLUTE = 2;
+
+    static final int NONE = -1;
+
+    final int size;
+    final String[] names;
+    final int[] parents;
+    final int[] ends;
+    final byte[] flags;
+    final byte[][] values;
+    final long[] createdIndexes;
+    final long[] modifiedIndexes;
+    final long[] expirations;
+    final int[] ttls;
+
+    // The original expiration strings, only for nodes that have one; kept so node() can reproduce them exactly
+    Map<Integer, String> expirationStrings;
+
+    /**
+     * The X-Etcd-Index of the response, if etcd sent one
+     */
+    public final Long etcdIndex;
+
+    EtcdCompactTree(Reader reader, Long etcdIndex) {
+        int n = reader.size;
+        this.size = n;
+        this.names = Arrays.copyOf(reader.names, n);
+        this.parents = Arrays.copyOf(reader.parents, n);
+        this.ends = Arrays.copyOf(reader.ends, n);
+        this.flags = Arrays.copyOf(reader.flags, n);
+        this.values = Arrays.copyOf(reader.values, n);
+        this.createdIndexes = Arrays.copyOf(reader.createdIndexes, n);
+        this.modifiedIndexes = Arrays.copyOf(reader.modifiedIndexes, n);
+        this.expirations = Arrays.copyOf(reader.expirations, n);
+        this.ttls = Arrays.copyOf(reader.ttls, n);
+        this.etcdIndex = etcdIndex;
+    }
+
+    /**
+     * The number of nodes, including the listed key
+     */
+    public int size() {
+        return size;
+    }
+
+    public String key(int node) {
+        if (node == 0) {
+            return names[0] == null ? "/" : names[0];
+        }
+        if ((flags[node] & ABSOLUTE) != 0) {
+            return names[node];
+        }
+        int parent = parents[node];
+        String parentKey = key(parent);
+        return parentKey.endsWith("/") ? parentKey + names[node] : parentKey + "/" + names[node];
+    }
+
+    /**
+     * The last segment of the node's key
+     */
+    public String name(int node) {
+        String name = names[node];
+        if (node == 0 || (flags[node] & ABSOLUTE) != 0) {
+            return name == null ? "" : name.substring(name.lastIndexOf('/') + 1);
+        }
+        return name;
+    }
+
+    public boolean isDir(int node) {
+        return (flags[node] & DIR) != 0;
+    }
+
+    public String value(int node) {
+        byte[] value = values[node];
+        return value == null ? null : new String(value, Charsets.UTF_8);
+    }
+
+    /**
+     * The value as UTF-8; the array is shared, and must not be modified
+     */
+    public byte[] valueBytes(int node) {
+        return values[node];
+    }
+
+    public long createdIndex(int node) {
+        return createdIndexes[node];
+    }
+
+    public long modifiedIndex(int node) {
+        return modifiedIndexes[node];
+    }
+
+    /**
+     * When the node expires, in epoch millis; 0 if it has no TTL (or the time could not be parsed)
+     */
+    public long expiration(int node) {
+        return expirations[node];
+    }
+
+    /**
+     * The seconds left to live when the node was read, or -1 if it has no TTL
+     */
+    public int ttl(int node) {
+        return ttls[node];
+    }
+
+    /**
+     * The node's directory, or -1 for the listed key
+     */
+    public int parent(int node) {
+        return parents[node];
+    }
+
+    /**
+     * The first node beneath a directory, or -1 if it is empty (or not a directory)
+     */
+    public int firstChild(int node) {
+        return node + 1 < ends[node] ? node + 1 : NONE;
+    }
+
+    /**
+     * The next node in the same directory, or -1 if this is the last
+     */
+    public int nextSibling(int node) {
+        int parent = parents[node];
+        if (parent == NONE) {
+            return NONE;
+        }
+        int next = ends[node];
+        return next < ends[parent] ? next : NONE;
+    }
+
+    /**
+     * Finds the node for a key, or returns -1 if it is not in the listing
+     */
+    public int find(String key) {
+        key = EtcdKeys.normalize(key);
+        String rootKey = EtcdKeys.normalize(key(0));
+        if (key.equals(rootKey)) {
+            return 0;
+        }
+        if (!EtcdKeys.isUnder(key, rootKey)) {
+            return NONE;
+        }
+
+        int node = 0;
+        int start = rootKey.length() + (rootKey.equals("/") ? 0 : 1);
+        while (start < key.length()) {
+            int slash = key.indexOf('/', start);
+            int end = slash == -1 ? key.length() : slash;
+            int length = end - start;
+            int child = firstChild(node);
+            while (child != NONE) {
+                String name = name(child);
+                if (name.length() == length && key.regionMatches(start, name, 0, length)) {
+                    break;
+                }
+                child = nextSibling(child);
+            }
+            if (child == NONE) {
+                return NONE;
+            }
+            node = child;
+            start = end + 1;
+        }
+        return node;
+    }
+
+    /**
+     * Builds an {@link EtcdNode} for one node, without its children
+     */
+    public EtcdNode node(int node) {
+        EtcdNode view = new EtcdNode();
+        view.key = key(node);
+        view.value = value(node);
+        view.dir = isDir(node);
+        view.createdIndex = createdIndexes[node];
+        view.modifiedIndex = modifiedIndexes[node];
+        if (ttls[node] != NONE) {
+            view.ttl = ttls[node];
+        }
+        view.expiration = expirationStrings == null ? null : expirationStrings.get(node);
+        return view;
+    }
+
+    /**
+     * Builds an {@link EtcdNode} for a node and everything beneath it
+     */
+    public EtcdNode toEtcdNode(int node) {
+        EtcdNode view = node(node);
+        if (isDir(node)) {
+            List<EtcdNode> children = new ArrayList<EtcdNode>();
+            for (int child = firstChild(node); child != NONE; child = nextSibling(child)) {
+                children.add(toEtcdNode(child));
+            }
+            view.nodes = children;
+        }
+        return view;
+    }
+
+    /**
+     * Parses an RFC 3339 timestamp, as etcd writes them (e.g. 2013-07-06T18:35:20.964437624-07:00), into epoch millis
+     */
+    static long parseTimestamp(String s) {
+        try {
+            int year = Integer.parseInt(s.substring(0, 4));
+            int month = Integer.parseInt(s.substring(5, 7));
+            int day = Integer.parseInt(s.substring(8, 10));
+            int hour = Integer.parseInt(s.substring(11, 13));
+            int minute = Integer.parseInt(s.substring(14, 16));
+            int second = Integer.parseInt(s.substring(17, 19));
+            if (s.charAt(4) != '-' || s.charAt(7) != '-' || s.charAt(13) != ':' || s.charAt(16) != ':') {
+                throw new IllegalArgumentException("Not a timestamp: " + s);
+            }
+
+            int i = 19;
+            int millis = 0;
+            if (i < s.length() && s.charAt(i) == '.') {
+                i++;
+                int digits = 0;
+                while (i < s.length() && Character.isDigit(s.charAt(i))) {
+                    if (digits < 3) {
+                        millis = millis * 10 + (s.charAt(i) - '0');
+                    }
+                    digits++;
+                    i++;
+                }
+                for (; digits < 3; digits++) {
+                    millis *= 10;
+                }
+            }
+
+            int offsetMinutes = 0;
+            char zone = s.charAt(i);
+            if (zone == '+' || zone == '-') {
+                int offsetHours = Integer.parseInt(s.substring(i + 1, i + 3));
+                offsetMinutes = offsetHours * 60 + Integer.parseInt(s.substring(i + 4, i + 6));
+                if (zone == '-') {
+                    offsetMinutes = -offsetMinutes;
+                }
+            } else if (zone != 'Z' && zone != 'z') {
+                throw new IllegalArgumentException("Not a timestamp: " + s);
+            }
+
+            long days = daysFromCivil(year, month, day);
+            long seconds = ((days * 24 + hour) * 60 + minute - offsetMinutes) * 60 + second;
+            return seconds * 1000 + millis;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a timestamp: " + s, e);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Not a timestamp: " + s, e);
+        }
+    }
+
+    /**
+     * Days since 1970-01-01 of a date in the proleptic Gregorian calendar
+     */
+    static long daysFromCivil(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * Decodes a node (and everything beneath it) from the response into arrays
+     */
+    static class Reader implements EtcdJson.NodeReader {
+        int size;
+        String[] names = new String[16];
+        int[] parents = new int[16];
+        int[] ends = new int[16];
+        byte[] flags = new byte[16];
+        byte[][] values = new byte[16][];
+        long[] createdIndexes = new long[16];
+        long[] modifiedIndexes = new long[16];
+        long[] expirations = new long[16];
+        int[] ttls = new int[16];
+        Map<Integer, String> expirationStrings;
+
+        public EtcdNode read(JsonReader in) throws IOException {
+            readNode(in, NONE);
+            return null;
+        }
+
+        EtcdCompactTree build(Long etcdIndex) {
+            shortenKeys();
+            EtcdCompactTree tree = new EtcdCompactTree(this, etcdIndex);
+            tree.expirationStrings = expirationStrings;
+            return tree;
+        }
+
+        void readNode(JsonReader in, int parent) throws IOException {
+            int node = allocate();
+            parents[node] = parent;
+            ttls[node] = NONE;
+
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+                if (name.equals("key")) {
+                    names[node] = in.nextString();
+                } else if (name.equals("value")) {
+                    values[node] = in.nextString().getBytes(Charsets.UTF_8);
+                } else if (name.equals("dir")) {
+                    if (in.nextBoolean()) {
+                        flags[node] |= DIR;
+                    }
+                } else if (name.equals("modifiedIndex")) {
+                    modifiedIndexes[node] = in.nextLong();
+                } else if (name.equals("createdIndex")) {
+                    createdIndexes[node] = in.nextLong();
+                } else if (name.equals("expiration")) {
+                    String expiration = in.nextString();
+                    try {
+                        expirations[node] = parseTimestamp(expiration);
+                    } catch (IllegalArgumentException e) {
+                        expirations[node] = 0;
+                    }
+                    if (expirationStrings == null) {
+                        expirationStrings = new HashMap<Integer, String>();
+                    }
+                    expirationStrings.put(node, expiration);
+                } else if (name.equals("ttl")) {
+                    ttls[node] = in.nextInt();
+                } else if (name.equals("nodes")) {
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        readNode(in, node);
+                    }
+                    in.endArray();
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            ends[node] = size;
+        }
+
+        int allocate() {
+            if (size == names.length) {
+                int capacity = size * 2;
+                names = Arrays.copyOf(names, capacity);
+                parents = Arrays.copyOf(parents, capacity);
+                ends = Arrays.copyOf(ends, capacity);
+                flags = Arrays.copyOf(flags, capacity);
+                values = Arrays.copyOf(values, capacity);
+                createdIndexes = Arrays.copyOf(createdIndexes, capacity);
+                modifiedIndexes = Arrays.copyOf(modifiedIndexes, capacity);
+                expirations = Arrays.copyOf(expirations, capacity);
+                ttls = Arrays.copyOf(ttls, capacity);
+            }
+            return size++;
+        }
+
+        /**
+         * Replaces each full key with its last segment, sharing repeated segments. Works backwards, so every parent
+         * still has its full key when its children are shortened.
+         */
+        void shortenKeys() {
+            Map<String, String> segments = new HashMap<String, String>();
+            for (int node = size - 1; node > 0; node--) {
+                String key = names[node];
+                String parentKey = names[parents[node]];
+                if (key == null || parentKey == null) {
+                    flags[node] |= ABSOLUTE;
+                    continue;
+                }
+                int prefix = parentKey.endsWith("/") ? parentKey.length() : parentKey.length() + 1;
+                if (key.length() <= prefix || !key.startsWith(parentKey)
+                        || (!parentKey.endsWith("/") && key.charAt(parentKey.length()) != '/')
+                        || key.indexOf('/', prefix) != -1) {
+                    flags[node] |= ABSOLUTE;
+                    continue;
+                }
+                String segment = key.substring(prefix);
+                String shared = segments.get(segment);
+                if (shared == null) {
+                    segments.put(segment, segment);
+                    shared = segment;
+                }
+                names[node] = shared;
+            }
+        }
+    }
+}
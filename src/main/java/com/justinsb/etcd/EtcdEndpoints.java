@@ -0,0 +1,164 @@
+package com.justinsb.etcd;
+
+import java.net.URI;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.utils.URIUtils;
+
+/**
+ * The members of an etcd cluster, and the policy for choosing between them.
+ *
+ * Reads go to the healthy member with the fewest outstanding requests. Writes go to the leader when it is known (it is
+ * learned from the redirects that followers send), and otherwise are treated like reads. A member that fails at the
+ * connection level is skipped for a cool-down period, so that one sick member does not stall traffic.
+ */
+class EtcdEndpoints {
+    static class Endpoint {
+        final URI baseUri;
+        final HttpHost host;
+        final String basePath;
+        final AtomicInteger inFlight = new AtomicInteger();
+        volatile long unavailableUntil;
+
+        Endpoint(URI baseUri) {
+            this.baseUri = baseUri;
+            this.host = URIUtils.extractHost(baseUri);
+            if (host == null) {
+                throw new IllegalArgumentException("Endpoint must be an absolute URI: " + baseUri);
+            }
+            this.basePath = baseUri.getRawPath() == null || baseUri.getRawPath().isEmpty() ? "/" : baseUri.getRawPath();
+        }
+
+        boolean isAvailable(long now) {
+            return now >= unavailableUntil;
+        }
+
+        /**
+         * Maps a request path (from the root) to this member; the same URI unless the member is mounted beneath a path
+         */
+        URI target(URI path) {
+            if (basePath.equals("/")) {
+                return path;
+            }
+            return URI.create(basePath + path.toString().substring(1));
+        }
+
+        @Override
+        public String toString() {
+            return baseUri.toString();
+        }
+    }
+
+    final List<Endpoint> endpoints = new CopyOnWriteArrayList<Endpoint>();
+    final AtomicInteger roundRobin = new AtomicInteger();
+    final long failureCooldown;
+    volatile Endpoint leader;
+
+    EtcdEndpoints(List<URI> baseUris, long failureCooldown) {
+        if (baseUris.isEmpty()) {
+            throw new IllegalArgumentException("At least one endpoint is required");
+        }
+        for (URI baseUri : baseUris) {
+            endpoints.add(new Endpoint(normalize(baseUri)));
+        }
+        this.failureCooldown = failureCooldown;
+    }
+
+    static URI normalize(URI baseUri) {
+        String uri = baseUri.toString();
+        if (!uri.endsWith("/")) {
+            uri += "/";
+            baseUri = URI.create(uri);
+        }
+        return baseUri;
+    }
+
+    int size() {
+        return endpoints.size();
+    }
+
+    /**
+     * Chooses the member for the next attempt of a request, skipping those already tried. Returns null when every
+     * member has been tried.
+     */
+    Endpoint select(boolean write, Collection<Endpoint> tried) {
+        long now = System.currentTimeMillis();
+
+        if (write) {
+            Endpoint leader = this.leader;
+            if (leader != null && leader.isAvailable(now) && !tried.contains(leader)) {
+                return leader;
+            }
+        }
+
+        List<Endpoint> endpoints = this.endpoints;
+        int n = endpoints.size();
+        int start = (roundRobin.getAndIncrement() & Integer.MAX_VALUE) % n;
+
+        Endpoint best = null;
+        Endpoint fallback = null;
+        for (int i = 0; i < n; i++) {
+            Endpoint endpoint = endpoints.get((start + i) % n);
+            if (tried.contains(endpoint)) {
+                continue;
+            }
+            if (endpoint.isAvailable(now)) {
+                if (best == null || endpoint.inFlight.get() < best.inFlight.get()) {
+                    best = endpoint;
+                }
+            } else {
+                // If every member is cooling down, try the one that failed longest ago
+                if (fallback == null || endpoint.unavailableUntil < fallback.unavailableUntil) {
+                    fallback = endpoint;
+                }
+            }
+        }
+        return best != null ? best : fallback;
+    }
+
+    void succeeded(Endpoint endpoint) {
+        endpoint.unavailableUntil = 0;
+    }
+
+    void failed(Endpoint endpoint) {
+        endpoint.unavailableUntil = System.currentTimeMillis() + failureCooldown;
+        if (leader == endpoint) {
+            leader = null;
+        }
+    }
+
+    /**
+     * Records the leader, from the location a follower redirected us to; returns the leader's endpoint, or null if the
+     * location names no host. A leader that is not one of the configured members is used, but not added to them.
+     */
+    synchronized Endpoint redirectedTo(URI location) {
+        HttpHost host = URIUtils.extractHost(location);
+        if (host == null) {
+            return null;
+        }
+        for (Endpoint endpoint : endpoints) {
+            if (sameHost(endpoint.host, host)) {
+                leader = endpoint;
+                return endpoint;
+            }
+        }
+        Endpoint endpoint = new Endpoint(location.resolve("/"));
+        leader = endpoint;
+        return endpoint;
+    }
+
+    static boolean sameHost(HttpHost a, HttpHost b) {
+        return a.getHostName().equalsIgnoreCase(b.getHostName()) && portOf(a) == portOf(b);
+    }
+
+    static int portOf(HttpHost host) {
+        if (host.getPort() != -1) {
+            return host.getPort();
+        }
+        return host.getSchemeName().equalsIgnoreCase("https") ? 443 : 80;
+    }
+}
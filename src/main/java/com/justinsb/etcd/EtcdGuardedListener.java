@@ -0,0 +1,75 @@
+package com.justinsb.etcd;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Wraps the configured {@link EtcdClientListener}, logging anything it throws, so a faulty listener cannot stop a
+ * request from completing
+ */
+class EtcdGuardedListener implements EtcdClientListener {
+    static final Logger log = LoggerFactory.getLogger(EtcdGuardedListener.class);
+
+    final EtcdClientListener inner;
+
+    EtcdGuardedListener(EtcdClientListener inner) {
+        this.inner = inner;
+    }
+
+    public void operationStarted(String operation) {
+        try {
+            inner.operationStarted(operation);
+        } catch (RuntimeException e) {
+            log.warn("Error from client listener", e);
+        }
+    }
+
+    public void exchangeCompleted(String operation, int httpStatusCode, long connectionWaitNanos, long bytesSent,
+            long bytesReceived) {
+        try {
+            inner.exchangeCompleted(operation, httpStatusCode, connectionWaitNanos, bytesSent, bytesReceived);
+        } catch (RuntimeException e) {
+            log.warn("Error from client listener", e);
+        }
+    }
+
+    public void responseDecoded(String operation, long decodeNanos) {
+        try {
+            inner.responseDecoded(operation, decodeNanos);
+        } catch (RuntimeException e) {
+            log.warn("Error from client listener", e);
+        }
+    }
+
+    public void operationCompleted(String operation, long latencyNanos, int errorCode) {
+        try {
+            inner.operationCompleted(operation, latencyNanos, errorCode);
+        } catch (RuntimeException e) {
+            log.warn("Error from client listener", e);
+        }
+    }
+
+    public void operationFailed(String operation, long latencyNanos, Throwable t) {
+        try {
+            inner.operationFailed(operation, latencyNanos, t);
+        } catch (RuntimeException e) {
+            log.warn("Error from client listener", e);
+        }
+    }
+
+    public void operationRetried(String operation, boolean hedge) {
+        try {
+            inner.operationRetried(operation, hedge);
+        } catch (RuntimeException e) {
+            log.warn("Error from client listener", e);
+        }
+    }
+
+    public void watchRearmed(String key, boolean resync) {
+        try {
+            inner.watchRearmed(key, resync);
+        } catch (RuntimeException e) {
+            log.warn("Error from client listener", e);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.justinsb.etcd;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Decodes etcd responses straight from the response stream into {@link EtcdResult} and {@link EtcdNode}, without
+ * building an intermediate string or JSON tree. Unknown fields are skipped, so newer versions of etcd can add fields.
+ */
+class EtcdJson {
+    /**
+     * Decodes the top-level node of a response
+     */
+    interface NodeReader {
+        EtcdNode read(JsonReader in) throws IOException;
+    }
+
+    /**
+     * Decodes the node and everything beneath it into a tree of {@link EtcdNode}
+     */
+    static final NodeReader TREE = new NodeReader() {
+        public EtcdNode read(JsonReader in) throws IOException {
+            return readNode(in, null);
+        }
+    };
+
+    /**
+     * Decodes the node, passing the nodes beneath it to the visitor instead of collecting them
+     */
+    static NodeReader visiting(final EtcdNodeVisitor visitor) {
+        return new NodeReader() {
+            public EtcdNode read(JsonReader in) throws IOException {
+                return readNode(in, visitor);
+            }
+        };
+    }
+
+    /**
+     * Reads a response; returns null if the body is empty
+     */
+    static EtcdResult readResult(JsonReader in) throws IOException {
+        return readResult(in, TREE);
+    }
+
+    /**
+     * Reads a response, decoding the top-level node with the given reader; returns null if the body is empty
+     */
+    static EtcdResult readResult(JsonReader in, NodeReader nodeReader) throws IOException {
+        if (isEmpty(in)) {
+            return null;
+        }
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        EtcdResult result = new EtcdResult();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                continue;
+            }
+            if (name.equals("action")) {
+                result.action = in.nextString();
+            } else if (name.equals("node")) {
+                result.node = nodeReader.read(in);
+            } else if (name.equals("prevNode")) {
+                result.prevNode = readNode(in, null);
+            } else if (name.equals("errorCode")) {
+                result.errorCode = in.nextInt();
+            } else if (name.equals("message")) {
+                result.message = in.nextString();
+            } else if (name.equals("cause")) {
+                result.cause = in.nextString();
+            } else if (name.equals("errorIndex")) {
+                result.errorIndex = in.nextInt();
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return result;
+    }
+
+    /**
+     * Reads an array of responses (as returned by the v1 listing API); returns null if the body is empty
+     */
+    static List<EtcdResult> readResults(JsonReader in) throws IOException {
+        if (isEmpty(in)) {
+            return null;
+        }
+        List<EtcdResult> results = new ArrayList<EtcdResult>();
+        in.beginArray();
+        while (in.hasNext()) {
+            results.add(readResult(in));
+        }
+        in.endArray();
+        return results;
+    }
+
+    /**
+     * Reads a node. If a visitor is given, each child (and everything beneath it) is passed to the visitor once decoded,
+     * and the node's own <code>nodes</code> is left null.
+     */
+    static EtcdNode readNode(JsonReader in, EtcdNodeVisitor visitor) throws IOException {
+        EtcdNode node = new EtcdNode();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                continue;
+            }
+            if (name.equals("key")) {
+                node.key = in.nextString();
+            } else if (name.equals("value")) {
+                node.value = in.nextString();
+            } else if (name.equals("dir")) {
+                node.dir = in.nextBoolean();
+            } else if (name.equals("modifiedIndex")) {
+                node.modifiedIndex = in.nextLong();
+            } else if (name.equals("createdIndex")) {
+                node.createdIndex = in.nextLong();
+            } else if (name.equals("expiration")) {
+                node.expiration = in.nextString();
+            } else if (name.equals("ttl")) {
+                node.ttl = in.nextInt();
+            } else if (name.equals("nodes")) {
+                readChildren(in, node, visitor);
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return node;
+    }
+
+    static void readChildren(JsonReader in, EtcdNode parent, EtcdNodeVisitor visitor) throws IOException {
+        in.beginArray();
+        if (visitor == null) {
+            List<EtcdNode> nodes = new ArrayList<EtcdNode>();
+            while (in.hasNext()) {
+                nodes.add(readNode(in, null));
+            }
+            parent.nodes = nodes;
+        } else {
+            while (in.hasNext()) {
+                EtcdNode child = readNode(in, visitor);
+                visitor.visit(child);
+            }
+        }
+        in.endArray();
+    }
+
+    /**
+     * Checks for an empty body, which Gson also treated as a null result
+     */
+    static boolean isEmpty(JsonReader in) throws IOException {
+        try {
+            in.peek();
+            return false;
+        } catch (EOFException e) {
+            return true;
+        }
+    }
+}
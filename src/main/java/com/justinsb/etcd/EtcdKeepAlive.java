@@ -0,0 +1,324 @@
+package com.justinsb.etcd;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Keeps keys with a TTL alive, by setting each back to its own value (with a cas) about a third of the way through its
+ * TTL. Suited to many keys at once, such as service registrations.
+ *
+ * One timer serves every lease. Refreshes are scheduled on a hashed timing wheel, so a tick only touches the leases
+ * that are due, and refresh times are jittered so that keys written together do not stay in lockstep. At most
+ * <code>maxConcurrentRefreshes</code> refreshes are in flight at once; the rest wait their turn.
+ *
+ * A lease is lost when its key is changed or deleted by someone else, or when refreshes keep failing until the TTL has
+ * run out. Lost leases are reported to the listener (and to the lease's own callback); they are not re-created.
+ */
+public class EtcdKeepAlive {
+    static final Logger log = LoggerFactory.getLogger(EtcdKeepAlive.class);
+
+    public static final int DEFAULT_MAX_CONCURRENT_REFRESHES = 32;
+
+    static final long TICK_MILLIS = 100;
+    static final int WHEEL_SIZE = 512;
+    static final long RETRY_MILLIS = 500;
+
+    // Refreshes are due between (1 - JITTER) and all of a third of the TTL
+    static final double JITTER = 0.25;
+
+    static final Random random = new Random();
+
+    /**
+     * Told about leases that were lost
+     */
+    public interface Listener {
+        void leaseLost(Lease lease, String reason);
+    }
+
+    /**
+     * A key held with a TTL
+     */
+    public static class Lease {
+        final String key;
+        final String value;
+        final int ttl;
+        final Runnable onLost;
+
+        // Guarded by the keep-alive
+        long rounds;
+
+        volatile long expiresAt;
+        volatile boolean released;
+        volatile boolean lost;
+
+        Lease(String key, String value, int ttl, Runnable onLost) {
+            this.key = key;
+            this.value = value;
+            this.ttl = ttl;
+            this.onLost = onLost;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public int getTtl() {
+            return ttl;
+        }
+
+        /**
+         * Checks if the key could not be kept alive; a released lease is not lost
+         */
+        public boolean isLost() {
+            return lost;
+        }
+    }
+
+    final EtcdClient client;
+    final int maxConcurrentRefreshes;
+    final Listener listener;
+    final Set<Lease> leases = Sets.newSetFromMap(new ConcurrentHashMap<Lease, Boolean>());
+
+    // Guarded by this
+    final Deque<Lease>[] wheel;
+    final Deque<Lease> ready = new ArrayDeque<Lease>();
+    int cursor;
+    int inFlight;
+    ScheduledFuture<?> timer;
+
+    public EtcdKeepAlive(EtcdClient client) {
+        this(client, DEFAULT_MAX_CONCURRENT_REFRESHES, null);
+    }
+
+    /**
+     * Builds a keep-alive with up to <code>maxConcurrentRefreshes</code> refreshes in flight, that reports lost leases
+     * to the listener (if any)
+     */
+    public EtcdKeepAlive(EtcdClient client, int maxConcurrentRefreshes, Listener listener) {
+        if (maxConcurrentRefreshes < 1) {
+            throw new IllegalArgumentException("maxConcurrentRefreshes must be at least 1");
+        }
+        this.client = client;
+        this.maxConcurrentRefreshes = maxConcurrentRefreshes;
+        this.listener = listener;
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        Deque<Lease>[] wheel = new Deque[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = new ArrayDeque<Lease>();
+        }
+        this.wheel = wheel;
+    }
+
+    /**
+     * Sets a key to a value with a TTL, and keeps it alive until released
+     */
+    public Lease register(String key, String value, int ttl) throws EtcdClientException {
+        client.set(key, value, ttl);
+        return hold(key, value, ttl, null);
+    }
+
+    /**
+     * Keeps alive a key that was just written with the value and TTL; the callback (if any) runs if the lease is lost
+     */
+    public Lease hold(String key, String value, int ttl, Runnable onLost) {
+        if (ttl < 1) {
+            throw new IllegalArgumentException("ttl must be at least 1");
+        }
+        Lease lease = new Lease(key, value, ttl, onLost);
+        lease.expiresAt = System.currentTimeMillis() + ttl * 1000L;
+        leases.add(lease);
+
+        synchronized (this) {
+            schedule(lease, refreshDelay(ttl));
+            if (timer == null) {
+                timer = EtcdClient.Scheduler.INSTANCE.scheduleWithFixedDelay(new Runnable() {
+                    public void run() {
+                        tick();
+                    }
+                }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+        return lease;
+    }
+
+    /**
+     * Stops refreshing a key; the key itself is left to expire, or for the caller to delete
+     */
+    public void release(Lease lease) {
+        lease.released = true;
+        leases.remove(lease);
+        stopIfIdle();
+    }
+
+    /**
+     * The leases being kept alive
+     */
+    public Set<Lease> getLeases() {
+        return Collections.unmodifiableSet(leases);
+    }
+
+    static long refreshDelay(int ttl) {
+        return (long) (ttl * 1000L / 3 * (1 - JITTER * random.nextDouble()));
+    }
+
+    /**
+     * Places the lease on the wheel, due after the delay; called holding the lock
+     */
+    void schedule(Lease lease, long delayMillis) {
+        long ticks = Math.max(1, (delayMillis + TICK_MILLIS - 1) / TICK_MILLIS);
+        lease.rounds = (ticks - 1) / WHEEL_SIZE;
+        wheel[(int) ((cursor + ticks) % WHEEL_SIZE)].add(lease);
+    }
+
+    synchronized void reschedule(Lease lease, long delayMillis) {
+        if (!lease.released) {
+            schedule(lease, delayMillis);
+        }
+    }
+
+    synchronized void stopIfIdle() {
+        if (leases.isEmpty() && timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+    }
+
+    void tick() {
+        synchronized (this) {
+            cursor = (cursor + 1) % WHEEL_SIZE;
+            Deque<Lease> slot = wheel[cursor];
+            for (int n = slot.size(); n > 0; n--) {
+                Lease lease = slot.poll();
+                if (lease.released) {
+                    continue;
+                }
+                if (lease.rounds > 0) {
+                    lease.rounds--;
+                    slot.add(lease);
+                } else {
+                    ready.add(lease);
+                }
+            }
+        }
+        drain();
+    }
+
+    /**
+     * Sends the refreshes that are due, as far as the window allows
+     */
+    void drain() {
+        while (true) {
+            Lease lease;
+            synchronized (this) {
+                if (inFlight >= maxConcurrentRefreshes || ready.isEmpty()) {
+                    return;
+                }
+                lease = ready.poll();
+                if (lease.released) {
+                    continue;
+                }
+                inFlight++;
+            }
+
+            long now = System.currentTimeMillis();
+            if (now >= lease.expiresAt) {
+                completed();
+                lost(lease, "expired before it could be refreshed");
+            } else {
+                refresh(lease, now);
+            }
+        }
+    }
+
+    void refresh(final Lease lease, final long sentAt) {
+        ListenableFuture<EtcdResult> future;
+        try {
+            future = client.casAsync(lease.key, lease.value, lease.value, lease.ttl);
+        } catch (EtcdClientException e) {
+            completed();
+            refreshFailed(lease, e);
+            return;
+        }
+        Futures.addCallback(future, new FutureCallback<EtcdResult>() {
+            public void onSuccess(EtcdResult result) {
+                completed();
+                if (result != null && result.isError()) {
+                    lost(lease, "changed by someone else");
+                } else {
+                    lease.expiresAt = sentAt + lease.ttl * 1000L;
+                    reschedule(lease, refreshDelay(lease.ttl));
+                }
+                drain();
+            }
+
+            public void onFailure(Throwable t) {
+                completed();
+                refreshFailed(lease, t);
+                drain();
+            }
+        });
+    }
+
+    synchronized void completed() {
+        inFlight--;
+    }
+
+    void refreshFailed(Lease lease, Throwable t) {
+        if (t instanceof EtcdClientException && isNotFound((EtcdClientException) t)) {
+            lost(lease, "deleted by someone else");
+            return;
+        }
+        long remaining = lease.expiresAt - System.currentTimeMillis();
+        if (remaining <= 0) {
+            lost(lease, "could not be refreshed before it expired: " + t);
+            return;
+        }
+        // Try again shortly, until the TTL runs out
+        log.debug("Error refreshing {}", lease.key, t);
+        reschedule(lease, Math.min(RETRY_MILLIS, remaining));
+    }
+
+    static boolean isNotFound(EtcdClientException e) {
+        // A cas on a missing key is answered with a 404, which the client does not decode
+        return e.isEtcdError(100) || e.isHttpError(404);
+    }
+
+    void lost(Lease lease, String reason) {
+        if (!leases.remove(lease)) {
+            return;
+        }
+        lease.released = true;
+        lease.lost = true;
+        stopIfIdle();
+        log.info("Lost lease on {}: {}", lease.key, reason);
+        if (listener != null) {
+            try {
+                listener.leaseLost(lease, reason);
+            } catch (RuntimeException e) {
+                log.warn("Error from keep-alive listener for " + lease.key, e);
+            }
+        }
+        if (lease.onLost != null) {
+            try {
+                lease.onLost.run();
+            } catch (RuntimeException e) {
+                log.warn("Error from lease callback for " + lease.key, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.justinsb.etcd;
+
+/**
+ * Helpers for working with key paths
+ */
+class EtcdKeys {
+    /**
+     * Returns the key with a leading slash and without a trailing slash
+     */
+    static String normalize(String key) {
+        if (!key.startsWith("/")) {
+            key = "/" + key;
+        }
+        while (key.length() > 1 && key.endsWith("/")) {
+            key = key.substring(0, key.length() - 1);
+        }
+        return key;
+    }
+
+    /**
+     * Returns the directory containing the key, or null for the root
+     */
+    static String parentOf(String key) {
+        if (key.equals("/")) {
+            return null;
+        }
+        int slash = key.lastIndexOf('/');
+        return slash == 0 ? "/" : key.substring(0, slash);
+    }
+
+    /**
+     * Checks if the key lies strictly beneath the directory
+     */
+    static boolean isUnder(String key, String dir) {
+        if (dir.equals("/")) {
+            return !key.equals("/");
+        }
+        return key.startsWith(dir + "/");
+    }
+
+    /**
+     * Finds the node for the key within a recursive listing
+     */
+    static EtcdNode find(EtcdNode node, String key) {
+        if (node == null || key.equals(node.key)) {
+            return node;
+        }
+        if (node.nodes != null) {
+            for (EtcdNode child : node.nodes) {
+                if (key.equals(child.key) || isUnder(key, child.key)) {
+                    return find(child, key);
+                }
+            }
+        }
+        return null;
+    }
+
+    static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * Encodes a key as a URI path with a leading slash, escaping each segment as {@link java.net.URLEncoder} would.
+     * Keys that need no escaping (the common case) are returned as they are, without allocating.
+     */
+    static String encodePath(String key) {
+        int n = key.length();
+        boolean rooted = n != 0 && key.charAt(0) == '/';
+        int i = 0;
+        while (i < n && isSafe(key.charAt(i))) {
+            i++;
+        }
+        if (i == n) {
+            return rooted ? key : "/" + key;
+        }
+
+        StringBuilder sb = new StringBuilder(n + 16);
+        if (!rooted) {
+            sb.append('/');
+        }
+        sb.append(key, 0, i);
+        for (; i < n; i++) {
+            char c = key.charAt(i);
+            if (isSafe(c)) {
+                sb.append(c);
+            } else if (c == ' ') {
+                sb.append('+');
+            } else {
+                int codePoint = c;
+                if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(key.charAt(i + 1))) {
+                    codePoint = Character.toCodePoint(c, key.charAt(++i));
+                } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                    // Unpaired; URLEncoder substitutes '?'
+                    codePoint = '?';
+                }
+                appendUtf8Escaped(sb, codePoint);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Characters that URLEncoder leaves alone, plus the path separator
+     */
+    static boolean isSafe(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '/' || c == '.'
+                || c == '-' || c == '_' || c == '*';
+    }
+
+    static void appendUtf8Escaped(StringBuilder sb, int codePoint) {
+        if (codePoint < 0x80) {
+            appendEscaped(sb, codePoint);
+        } else if (codePoint < 0x800) {
+            appendEscaped(sb, 0xC0 | (codePoint >> 6));
+            appendEscaped(sb, 0x80 | (codePoint & 0x3F));
+        } else if (codePoint < 0x10000) {
+            appendEscaped(sb, 0xE0 | (codePoint >> 12));
+            appendEscaped(sb, 0x80 | ((codePoint >> 6) & 0x3F));
+            appendEscaped(sb, 0x80 | (codePoint & 0x3F));
+        } else {
+            appendEscaped(sb, 0xF0 | (codePoint >> 18));
+            appendEscaped(sb, 0x80 | ((codePoint >> 12) & 0x3F));
+            appendEscaped(sb, 0x80 | ((codePoint >> 6) & 0x3F));
+            appendEscaped(sb, 0x80 | (codePoint & 0x3F));
+        }
+    }
+
+    static void appendEscaped(StringBuilder sb, int b) {
+        sb.append('%');
+        sb.append(HEX[(b >> 4) & 0xF]);
+        sb.append(HEX[b & 0xF]);
+    }
+}
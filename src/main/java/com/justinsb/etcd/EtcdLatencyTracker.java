@@ -0,0 +1,46 @@
+package com.justinsb.etcd;
+
+import java.util.Arrays;
+
+/**
+ * Estimates a percentile of recent latencies, from a ring of the last {@link #SAMPLES} samples. The estimate is
+ * recomputed every {@link #RECOMPUTE_EVERY} samples, so reading it is cheap.
+ */
+class EtcdLatencyTracker {
+    static final int SAMPLES = 256;
+    static final int RECOMPUTE_EVERY = 32;
+
+    final double percentile;
+
+    // Guarded by this
+    final long[] samples = new long[SAMPLES];
+    int recorded;
+
+    volatile long estimate = -1;
+
+    EtcdLatencyTracker(double percentile) {
+        this.percentile = percentile;
+    }
+
+    synchronized void record(long nanos) {
+        samples[recorded % SAMPLES] = nanos;
+        recorded++;
+        if (recorded % RECOMPUTE_EVERY == 0) {
+            long[] sorted = Arrays.copyOf(samples, Math.min(recorded, SAMPLES));
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+            estimate = sorted[Math.max(0, Math.min(rank, sorted.length - 1))];
+            if (recorded >= SAMPLES * 2) {
+                // Keep the position in the ring, without overflowing
+                recorded -= SAMPLES;
+            }
+        }
+    }
+
+    /**
+     * The estimated percentile in nanoseconds, or -1 until there are enough samples
+     */
+    long estimate() {
+        return estimate;
+    }
+}
@@ -0,0 +1,176 @@
+package com.justinsb.etcd;
+
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * A lock held as a key with a TTL. Whoever creates the key holds the lock, and keeps it alive in the background until
+ * they unlock it; if the holder dies, the lock is released when the TTL runs out.
+ *
+ * Waiting to lock is driven by a watch on the key, so a waiter tries again as soon as the lock is released (or
+ * expires) rather than polling. The lock is not reentrant, and each instance is one owner: use an instance per thread
+ * (or process) that competes for the lock.
+ */
+public class EtcdLock {
+    public static final int DEFAULT_TTL = 10;
+
+    final EtcdClient client;
+    final String key;
+    final int ttl;
+    final String owner;
+
+    volatile EtcdKeepAlive.Lease lease;
+
+    public EtcdLock(EtcdClient client, String key) {
+        this(client, key, DEFAULT_TTL);
+    }
+
+    /**
+     * Builds a lock that a dead holder keeps for up to <code>ttl</code> seconds
+     */
+    public EtcdLock(EtcdClient client, String key, int ttl) {
+        if (ttl < 1) {
+            throw new IllegalArgumentException("ttl must be at least 1");
+        }
+        this.client = client;
+        this.key = key;
+        this.ttl = ttl;
+        this.owner = UUID.randomUUID().toString();
+    }
+
+    /**
+     * Takes the lock if it is free; returns false at once if it is held
+     */
+    public boolean tryLock() throws EtcdClientException {
+        return tryCreate() == null;
+    }
+
+    /**
+     * Waits for the lock, for up to the timeout; returns false if the lock was not taken in time
+     */
+    public boolean tryLock(long timeout, TimeUnit unit) throws EtcdClientException, InterruptedException {
+        return acquire(System.nanoTime() + unit.toNanos(timeout), true);
+    }
+
+    /**
+     * Waits for the lock
+     */
+    public void lock() throws EtcdClientException, InterruptedException {
+        while (!acquire(0, false)) {
+            // Only a timed wait gives up, but never return without the lock
+        }
+    }
+
+    /**
+     * Releases the lock, if this instance still holds it
+     */
+    public void unlock() throws EtcdClientException {
+        EtcdKeepAlive.Lease lease = this.lease;
+        if (lease == null) {
+            throw new IllegalStateException("Lock is not held");
+        }
+        this.lease = null;
+        client.keepAlive.release(lease);
+        client.compareAndDelete(key, owner);
+    }
+
+    /**
+     * Checks that the lock is still held: it is lost if its key is changed or deleted by someone else, or if it could
+     * not be kept alive (for example, because etcd was unreachable for the whole TTL)
+     */
+    public boolean isHeld() {
+        EtcdKeepAlive.Lease lease = this.lease;
+        return lease != null && !lease.isLost();
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    boolean acquire(long deadline, boolean timed) throws EtcdClientException, InterruptedException {
+        while (true) {
+            EtcdResult held = tryCreate();
+            if (held == null) {
+                return true;
+            }
+
+            // Wait for the key to go, watching from just after the failed create so no release is missed
+            Long index = held.etcdIndex != null ? held.etcdIndex + 1 : null;
+            while (true) {
+                long remaining = timed ? deadline - System.nanoTime() : Long.MAX_VALUE;
+                if (remaining <= 0) {
+                    return false;
+                }
+                EtcdResult event;
+                try {
+                    event = await(client.watch(key, index, false), remaining);
+                } catch (TimeoutException e) {
+                    return false;
+                } catch (EtcdClientException e) {
+                    if (e.isEtcdError(401)) {
+                        // etcd no longer has the history; just try again
+                        break;
+                    }
+                    throw e;
+                }
+                if (event == null) {
+                    // The poll ended without an event; watch again
+                    continue;
+                }
+                if (isRemoval(event)) {
+                    break;
+                }
+                index = event.node.modifiedIndex + 1;
+            }
+        }
+    }
+
+    /**
+     * Tries to create the key; returns null if it was created (and so the lock is held), otherwise the error result
+     */
+    EtcdResult tryCreate() throws EtcdClientException {
+        if (lease != null) {
+            throw new IllegalStateException("Lock is already held");
+        }
+        EtcdResult result = client.create(key, owner, ttl);
+        if (result.isError()) {
+            return result;
+        }
+        lease = client.keepAlive.hold(key, owner, ttl, null);
+        return null;
+    }
+
+    /**
+     * Checks if a watch event removed the key
+     */
+    static boolean isRemoval(EtcdResult event) {
+        String action = event.action;
+        return "delete".equals(action) || "expire".equals(action) || "compareAndDelete".equals(action);
+    }
+
+    /**
+     * Waits for a watch, cancelling it on timeout; returns null if the poll ended without an event
+     */
+    static EtcdResult await(ListenableFuture<EtcdResult> watch, long timeoutNanos) throws EtcdClientException,
+            InterruptedException, TimeoutException {
+        try {
+            return watch.get(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            watch.cancel(true);
+            throw e;
+        } catch (InterruptedException e) {
+            watch.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof EtcdClientException) {
+                throw (EtcdClientException) cause;
+            }
+            throw new EtcdClientException("Error watching lock", cause);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.justinsb.etcd;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Records client metrics into HdrHistograms: latency, connection wait and decode time for each operation, plus
+ * counters for bytes, requests in flight, retries, watch re-arms and errors.
+ *
+ * Recording is lock-free. Requires HdrHistogram on the classpath.
+ */
+public class EtcdMetricsRecorder implements EtcdClientListener {
+    static final int SIGNIFICANT_DIGITS = 3;
+
+    /**
+     * The histograms for one operation
+     */
+    public static class OperationMetrics {
+        public final Histogram latency = new ConcurrentHistogram(SIGNIFICANT_DIGITS);
+        public final Histogram connectionWait = new ConcurrentHistogram(SIGNIFICANT_DIGITS);
+        public final Histogram decodeTime = new ConcurrentHistogram(SIGNIFICANT_DIGITS);
+        public final AtomicLong failures = new AtomicLong();
+    }
+
+    final ConcurrentMap<String, OperationMetrics> operations = new ConcurrentHashMap<String, OperationMetrics>();
+    final ConcurrentMap<Integer, AtomicLong> etcdErrors = new ConcurrentHashMap<Integer, AtomicLong>();
+    final ConcurrentMap<Integer, AtomicLong> httpErrors = new ConcurrentHashMap<Integer, AtomicLong>();
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicLong bytesSent = new AtomicLong();
+    final AtomicLong bytesReceived = new AtomicLong();
+    final AtomicLong retries = new AtomicLong();
+    final AtomicLong hedges = new AtomicLong();
+    final AtomicLong watchRearms = new AtomicLong();
+    final AtomicLong watchResyncs = new AtomicLong();
+
+    /**
+     * The metrics for the operation, or null if it has not been seen
+     */
+    public OperationMetrics getOperation(String operation) {
+        return operations.get(operation);
+    }
+
+    public Set<String> getOperations() {
+        return operations.keySet();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    public long getWatchRearms() {
+        return watchRearms.get();
+    }
+
+    public long getWatchResyncs() {
+        return watchResyncs.get();
+    }
+
+    /**
+     * The number of results with each etcd error code, whether or not the caller expected the error
+     */
+    public Map<Integer, Long> getEtcdErrorCounts() {
+        return snapshot(etcdErrors);
+    }
+
+    /**
+     * The number of responses with each HTTP status of 400 or above
+     */
+    public Map<Integer, Long> getHttpErrorCounts() {
+        return snapshot(httpErrors);
+    }
+
+    static Map<Integer, Long> snapshot(ConcurrentMap<Integer, AtomicLong> counters) {
+        Map<Integer, Long> snapshot = Maps.newTreeMap();
+        for (Map.Entry<Integer, AtomicLong> entry : counters.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().get());
+        }
+        return snapshot;
+    }
+
+    OperationMetrics metrics(String operation) {
+        OperationMetrics metrics = operations.get(operation);
+        if (metrics == null) {
+            OperationMetrics created = new OperationMetrics();
+            metrics = operations.putIfAbsent(operation, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        return metrics;
+    }
+
+    static void increment(ConcurrentMap<Integer, AtomicLong> counters, int code) {
+        AtomicLong counter = counters.get(code);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(code, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    public void operationStarted(String operation) {
+        inFlight.incrementAndGet();
+    }
+
+    public void exchangeCompleted(String operation, int httpStatusCode, long connectionWaitNanos, long bytesSent,
+            long bytesReceived) {
+        if (connectionWaitNanos >= 0) {
+            metrics(operation).connectionWait.recordValue(connectionWaitNanos);
+        }
+        if (bytesSent > 0) {
+            this.bytesSent.addAndGet(bytesSent);
+        }
+        if (bytesReceived > 0) {
+            this.bytesReceived.addAndGet(bytesReceived);
+        }
+        if (httpStatusCode >= 400) {
+            increment(httpErrors, httpStatusCode);
+        }
+    }
+
+    public void responseDecoded(String operation, long decodeNanos) {
+        metrics(operation).decodeTime.recordValue(decodeNanos);
+    }
+
+    public void operationCompleted(String operation, long latencyNanos, int errorCode) {
+        inFlight.decrementAndGet();
+        metrics(operation).latency.recordValue(latencyNanos);
+        if (errorCode != 0) {
+            increment(etcdErrors, errorCode);
+        }
+    }
+
+    public void operationFailed(String operation, long latencyNanos, Throwable t) {
+        inFlight.decrementAndGet();
+        OperationMetrics metrics = metrics(operation);
+        metrics.latency.recordValue(latencyNanos);
+        metrics.failures.incrementAndGet();
+        if (t instanceof EtcdClientException) {
+            EtcdResult result = ((EtcdClientException) t).result;
+            if (result != null && result.errorCode != null) {
+                increment(etcdErrors, result.errorCode);
+            }
+        }
+    }
+
+    public void operationRetried(String operation, boolean hedge) {
+        if (hedge) {
+            hedges.incrementAndGet();
+        } else {
+            retries.incrementAndGet();
+        }
+    }
+
+    public void watchRearmed(String key, boolean resync) {
+        if (resync) {
+            watchResyncs.incrementAndGet();
+        } else {
+            watchRearms.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.justinsb.etcd;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Reads a group of keys as they all stood at one etcd index.
+ *
+ * When the keys all sit in one directory, that directory is listed: a single response, so consistent by construction.
+ * Otherwise the keys are read concurrently. A key's value is known to hold from its modifiedIndex to the index of the
+ * response it came in, so the reads are consistent if some index lies within all of those ranges. Keys whose reads
+ * ended before the latest modification among the others are read again: if unchanged, their range is extended; if
+ * changed, the new value is taken. Only those keys are re-read, and under light write traffic the first round usually
+ * suffices. If the keys are written so often that the re-reads keep chasing new values, the smallest directory covering
+ * all of them is read recursively instead.
+ *
+ * A missing key is only known to be missing at the index it was read at, so its range is just that index.
+ */
+class EtcdMultiGet {
+    // Rounds of concurrent reads before falling back to reading the covering directory
+    static final int MAX_ROUNDS = 3;
+
+    /**
+     * What is known about one key
+     */
+    static class Reading {
+        final String key;
+        EtcdNode node;
+        // The value is known to hold over [from, to]
+        long from;
+        long to;
+
+        Reading(String key) {
+            this.key = key;
+        }
+    }
+
+    final EtcdClient client;
+    final List<Reading> readings;
+
+    EtcdMultiGet(EtcdClient client, List<String> keys) {
+        this.client = client;
+        this.readings = new ArrayList<Reading>(keys.size());
+        for (String key : keys) {
+            readings.add(new Reading(key));
+        }
+    }
+
+    ListenableFuture<EtcdMultiResult> start() throws EtcdClientException {
+        String dir = commonParent();
+        if (dir != null) {
+            return readListing(dir, false);
+        }
+        return read(readings, 1);
+    }
+
+    /**
+     * The directory holding every key, if there is more than one key and they share one (other than the root)
+     */
+    String commonParent() {
+        if (readings.size() < 2) {
+            return null;
+        }
+        String dir = null;
+        for (Reading reading : readings) {
+            String parent = EtcdKeys.parentOf(EtcdKeys.normalize(reading.key));
+            if (parent == null || parent.equals("/") || (dir != null && !dir.equals(parent))) {
+                return null;
+            }
+            dir = parent;
+        }
+        return dir;
+    }
+
+    /**
+     * Reads the smallest directory holding every key, recursively, in a single response
+     */
+    ListenableFuture<EtcdMultiResult> readCovering() throws EtcdClientException {
+        String dir = null;
+        for (Reading reading : readings) {
+            String parent = EtcdKeys.parentOf(EtcdKeys.normalize(reading.key));
+            if (parent == null) {
+                parent = "/";
+            }
+            while (dir != null && !dir.equals(parent) && !EtcdKeys.isUnder(parent, dir)) {
+                dir = EtcdKeys.parentOf(dir);
+            }
+            if (dir == null) {
+                dir = parent;
+            }
+        }
+        return readListing(dir, true);
+    }
+
+    /**
+     * Lists a directory holding every key, in a single response, and picks the keys out of it
+     */
+    ListenableFuture<EtcdMultiResult> readListing(String dir, boolean recursive) throws EtcdClientException {
+        return Futures.transform(client.getOrErrorAsync(dir, recursive), new Function<EtcdResult, EtcdMultiResult>() {
+            public EtcdMultiResult apply(EtcdResult listing) {
+                return fromListing(listing);
+            }
+        });
+    }
+
+    EtcdMultiResult fromListing(EtcdResult listing) {
+        EtcdMultiResult result = new EtcdMultiResult();
+        result.etcdIndex = listing.etcdIndex != null ? listing.etcdIndex : 0;
+        result.nodes = new LinkedHashMap<String, EtcdNode>();
+        for (Reading reading : readings) {
+            EtcdNode node = listing.isError() ? null : EtcdKeys.find(listing.node, EtcdKeys.normalize(reading.key));
+            if (node != null) {
+                result.nodes.put(reading.key, node);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads (or re-reads) the given keys concurrently, then checks the readings for consistency
+     */
+    ListenableFuture<EtcdMultiResult> read(final List<Reading> stale, final int round) throws EtcdClientException {
+        List<ListenableFuture<EtcdResult>> reads = new ArrayList<ListenableFuture<EtcdResult>>(stale.size());
+        for (Reading reading : stale) {
+            reads.add(client.getOrErrorAsync(reading.key, false));
+        }
+        return Futures.transform(Futures.allAsList(reads), new AsyncFunction<List<EtcdResult>, EtcdMultiResult>() {
+            public ListenableFuture<EtcdMultiResult> apply(List<EtcdResult> results) throws EtcdClientException {
+                for (int i = 0; i < stale.size(); i++) {
+                    update(stale.get(i), results.get(i), round > 1);
+                }
+                return check(round);
+            }
+        });
+    }
+
+    static void update(Reading reading, EtcdResult result, boolean reread) {
+        EtcdNode node = result.isError() ? null : result.node;
+        long to = result.etcdIndex != null ? result.etcdIndex : Long.MAX_VALUE;
+        if (node != null && node.modifiedIndex > to) {
+            to = node.modifiedIndex;
+        }
+
+        // A missing key's absence is only known at the read, so it never carries over from an earlier one
+        boolean unchanged = reread && node != null && reading.node != null
+                && reading.node.modifiedIndex == node.modifiedIndex;
+        if (!unchanged) {
+            reading.node = node;
+            reading.from = node != null ? node.modifiedIndex : to;
+        }
+        reading.to = to;
+    }
+
+    ListenableFuture<EtcdMultiResult> check(int round) throws EtcdClientException {
+        long from = 0;
+        long to = Long.MAX_VALUE;
+        for (Reading reading : readings) {
+            from = Math.max(from, reading.from);
+            to = Math.min(to, reading.to);
+        }
+        if (from <= to) {
+            EtcdMultiResult result = new EtcdMultiResult();
+            result.etcdIndex = to != Long.MAX_VALUE ? to : from;
+            result.nodes = new LinkedHashMap<String, EtcdNode>();
+            for (Reading reading : readings) {
+                if (reading.node != null) {
+                    result.nodes.put(reading.key, reading.node);
+                }
+            }
+            return Futures.immediateFuture(result);
+        }
+
+        if (round >= MAX_ROUNDS) {
+            return readCovering();
+        }
+        List<Reading> stale = new ArrayList<Reading>();
+        for (Reading reading : readings) {
+            if (reading.to < from) {
+                stale.add(reading);
+            }
+        }
+        return read(stale, round + 1);
+    }
+}
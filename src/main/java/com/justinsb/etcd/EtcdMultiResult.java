@@ -0,0 +1,27 @@
+package com.justinsb.etcd;
+
+import java.util.Map;
+
+/**
+ * The result of {@link EtcdClient#multiGet(String...)}: the nodes for a group of keys, as they all stood at one etcd
+ * index
+ */
+public class EtcdMultiResult {
+	// The index at which the nodes were all current
+	public long etcdIndex;
+
+	// The node for each key that exists, in the order the keys were asked for; missing keys are left out
+	public Map<String, EtcdNode> nodes;
+
+	/**
+	 * The node for a key, or null if it did not exist
+	 */
+	public EtcdNode get(String key) {
+		return nodes.get(key);
+	}
+
+	@Override
+	public String toString() {
+		return EtcdClient.format(this);
+	}
+}
@@ -0,0 +1,14 @@
+package com.justinsb.etcd;
+
+/**
+ * Receives the nodes of a listing one at a time, as they are decoded from the response, so that a large listing never
+ * needs to be held in memory as a tree.
+ */
+public interface EtcdNodeVisitor {
+    /**
+     * Called for each node beneath the listed key, once the node has been fully decoded. A directory is visited after
+     * everything beneath it (etcd sends a directory's indexes after its children), and its <code>nodes</code> are
+     * always null; the node is not retained after the call returns.
+     */
+    void visit(EtcdNode node);
+}
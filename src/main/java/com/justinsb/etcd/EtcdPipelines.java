@@ -0,0 +1,315 @@
+package com.justinsb.etcd;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.http.Header;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.BufferedHttpEntity;
+import org.apache.http.impl.DefaultBHttpClientConnection;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Pipelines reads over one connection to each member: requests are written one after another without waiting for the
+ * responses, which come back in the same order, so any number of concurrent reads share a single connection.
+ *
+ * Each pipeline has a thread that connects and then reads responses. A read is only pipelined when its member's
+ * connection is up and has fewer than <code>maxPipelineDepth</code> requests outstanding; otherwise
+ * {@link #execute(HttpHost, HttpUriRequest)} returns null and the caller sends it the usual way. When a connection
+ * drops, its outstanding requests fail with a {@link PipelineClosedException}, so the caller can send them the usual
+ * way, and a new connection is opened on the next read. Only a failure to connect, or a response that times out, holds
+ * the member's pipeline back for the failure cooldown.
+ */
+class EtcdPipelines implements Closeable {
+    static final Logger log = LoggerFactory.getLogger(EtcdPipelines.class);
+
+    static final ThreadFactory THREAD_FACTORY = new ThreadFactoryBuilder().setDaemon(true)
+            .setNameFormat("etcd-client-pipeline-%d").build();
+
+    final EtcdClientConfig config;
+    final EtcdClientListener listener;
+    final ConcurrentMap<HttpHost, Pipeline> pipelines = new ConcurrentHashMap<HttpHost, Pipeline>();
+    volatile boolean closed;
+
+    EtcdPipelines(EtcdClientConfig config, EtcdClientListener listener) {
+        this.config = config;
+        this.listener = listener;
+    }
+
+    /**
+     * Sends a GET, whose URI is a path, down the host's pipeline; returns null if the pipeline cannot take it now
+     */
+    Exchange execute(HttpHost host, HttpUriRequest request) {
+        if (closed) {
+            return null;
+        }
+        Pipeline pipeline = pipelines.get(host);
+        if (pipeline == null || pipeline.canReplace()) {
+            Pipeline created = new Pipeline(host);
+            boolean added = pipeline == null ? pipelines.putIfAbsent(host, created) == null
+                    : pipelines.replace(host, pipeline, created);
+            if (added) {
+                created.start();
+            }
+            // Reads go the usual way while it connects
+            return null;
+        }
+        return pipeline.send(request);
+    }
+
+    public void close() {
+        closed = true;
+        for (Pipeline pipeline : pipelines.values()) {
+            pipeline.fail(new IOException("Client closed"), false);
+        }
+        pipelines.clear();
+    }
+
+    /**
+     * The failure of a request whose pipeline's connection dropped before its response was read. This is no sign of
+     * trouble with the member (the server may just have closed an idle connection), and a read can safely be sent
+     * again.
+     */
+    static class PipelineClosedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        PipelineClosedException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * A request written to a pipeline, awaiting its response
+     */
+    static class Exchange {
+        final Pipeline pipeline;
+        final HttpUriRequest request;
+        final HttpContext context = new BasicHttpContext();
+        final SettableFuture<HttpResponse> future = SettableFuture.create();
+
+        Exchange(Pipeline pipeline, HttpUriRequest request) {
+            this.pipeline = pipeline;
+            this.request = request;
+        }
+
+        /**
+         * Gives up on the response; as the responses behind it cannot be read until it arrives, the connection is
+         * closed
+         */
+        void timedOut() {
+            pipeline.timedOut(this);
+        }
+    }
+
+    /**
+     * One connection, with its outstanding requests in the order they were written
+     */
+    class Pipeline implements Runnable {
+        final HttpHost host;
+        final DefaultBHttpClientConnection connection = new DefaultBHttpClientConnection(8192);
+
+        // Guarded by this
+        final Queue<Exchange> outstanding = new ArrayDeque<Exchange>();
+        boolean connected;
+        boolean failed;
+        long failedAt;
+        long lastUsed = System.currentTimeMillis();
+
+        Pipeline(HttpHost host) {
+            this.host = host;
+        }
+
+        void start() {
+            THREAD_FACTORY.newThread(this).start();
+        }
+
+        /**
+         * Checks if this connection should make way for a new one: it has been idle so long that the server may have
+         * closed it, or it failed and the member has had time to recover
+         */
+        synchronized boolean canReplace() {
+            long now = System.currentTimeMillis();
+            if (failed) {
+                return now - failedAt >= config.endpointFailureCooldown;
+            }
+            if (connected && outstanding.isEmpty() && config.keepAlive >= 0 && now - lastUsed >= config.keepAlive) {
+                failed = true;
+                closeQuietly();
+                notifyAll();
+                return true;
+            }
+            return false;
+        }
+
+        synchronized Exchange send(HttpUriRequest request) {
+            if (!connected || failed || outstanding.size() >= config.maxPipelineDepth) {
+                return null;
+            }
+
+            Exchange exchange = new Exchange(this, request);
+            if (listener != null) {
+                long now = System.nanoTime();
+                exchange.context.setAttribute(EtcdClient.SENT_AT, now);
+                exchange.context.setAttribute(EtcdClient.CONNECTED_AT, now);
+            }
+
+            BasicHttpRequest message = new BasicHttpRequest(request.getMethod(), request.getURI().toString());
+            for (Header header : request.getAllHeaders()) {
+                message.addHeader(header);
+            }
+            message.setHeader(HttpHeaders.HOST, host.toHostString());
+            try {
+                connection.sendRequestHeader(message);
+                connection.flush();
+            } catch (Exception e) {
+                // Not known to have been sent, so it can go the usual way
+                fail(e, false);
+                return null;
+            }
+
+            outstanding.add(exchange);
+            lastUsed = System.currentTimeMillis();
+            notifyAll();
+            return exchange;
+        }
+
+        void timedOut(Exchange exchange) {
+            synchronized (this) {
+                if (!outstanding.contains(exchange)) {
+                    return;
+                }
+            }
+            fail(new IOException("Timed out waiting for a response from " + host), true);
+        }
+
+        public void run() {
+            try {
+                Socket socket = new Socket();
+                socket.setTcpNoDelay(true);
+                socket.connect(new InetSocketAddress(host.getHostName(), host.getPort()), config.connectTimeout);
+                connection.bind(socket);
+            } catch (IOException e) {
+                fail(e, true);
+                return;
+            }
+            synchronized (this) {
+                if (failed) {
+                    closeQuietly();
+                    return;
+                }
+                connected = true;
+            }
+
+            try {
+                while (true) {
+                    Exchange exchange;
+                    synchronized (this) {
+                        while (outstanding.isEmpty() && !failed) {
+                            wait();
+                        }
+                        if (failed) {
+                            return;
+                        }
+                        exchange = outstanding.peek();
+                    }
+
+                    HttpResponse response = connection.receiveResponseHeader();
+                    int statusCode = response.getStatusLine().getStatusCode();
+                    if (statusCode >= HttpStatus.SC_OK && statusCode != HttpStatus.SC_NO_CONTENT
+                            && statusCode != HttpStatus.SC_NOT_MODIFIED) {
+                        connection.receiveResponseEntity(response);
+                        if (response.getEntity() != null) {
+                            // Read it all now, as the next response follows it on the connection
+                            response.setEntity(new BufferedHttpEntity(response.getEntity()));
+                        }
+                    }
+                    boolean reusable = !isClose(response);
+
+                    synchronized (this) {
+                        outstanding.remove();
+                        lastUsed = System.currentTimeMillis();
+                    }
+                    try {
+                        if (listener != null) {
+                            EtcdClient.exchangeCompleted(listener, exchange.request, exchange.context, response);
+                        }
+                    } finally {
+                        // A cancelled read's response is just dropped
+                        exchange.future.set(response);
+                    }
+
+                    if (!reusable) {
+                        fail(new IOException("Connection closed by " + host), false);
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                fail(e, false);
+            } catch (HttpException e) {
+                fail(new IOException("Bad response from " + host, e), false);
+            } catch (RuntimeException e) {
+                log.warn("Unexpected error on pipeline to " + host, e);
+                fail(e, false);
+            } catch (InterruptedException e) {
+                fail(e, false);
+            }
+        }
+
+        /**
+         * Closes the connection, failing every outstanding request. Unless the member is at fault, a new connection
+         * can be opened straight away.
+         */
+        void fail(Throwable t, boolean memberFault) {
+            List<Exchange> failed;
+            synchronized (this) {
+                if (!this.failed) {
+                    this.failed = true;
+                    if (memberFault) {
+                        failedAt = System.currentTimeMillis();
+                    }
+                }
+                failed = new ArrayList<Exchange>(outstanding);
+                outstanding.clear();
+                closeQuietly();
+                notifyAll();
+            }
+            for (Exchange exchange : failed) {
+                exchange.future.setException(new PipelineClosedException("Pipeline to " + host + " closed", t));
+            }
+        }
+
+        void closeQuietly() {
+            try {
+                connection.shutdown();
+            } catch (IOException e) {
+                log.debug("Error closing pipeline to " + host, e);
+            }
+        }
+    }
+
+    static boolean isClose(HttpResponse response) {
+        Header connection = response.getFirstHeader(HttpHeaders.CONNECTION);
+        return connection != null && connection.getValue().equalsIgnoreCase("close");
+    }
+}
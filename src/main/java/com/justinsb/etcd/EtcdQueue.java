@@ -0,0 +1,215 @@
+package com.justinsb.etcd;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * A FIFO queue held in a directory, one in-order key per item, for any number of producers and consumers.
+ *
+ * Consumers claim an item by deleting its key with a compare-and-delete on the index they listed it at, so each item
+ * goes to exactly one consumer. A consumer lists the directory once for many items, keeps the ones it has not yet
+ * claimed in memory, and claims a batch of them at once; it lists again in the background when it is running low. When
+ * the queue is empty, it waits on a watch of the directory rather than polling.
+ *
+ * Each instance is one consumer, and is not thread-safe; use an instance per consuming thread.
+ */
+public class EtcdQueue {
+    public static final int DEFAULT_BATCH_SIZE = 16;
+
+    final EtcdClient client;
+    final String dir;
+    final int batchSize;
+
+    // Items listed but not yet claimed, in order
+    final Deque<EtcdNode> listed = new ArrayDeque<EtcdNode>();
+    String lastListed;
+    ListenableFuture<EtcdResult> prefetch;
+
+    public EtcdQueue(EtcdClient client, String dir) {
+        this(client, dir, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Builds a consumer that claims up to <code>batchSize</code> items at a time
+     */
+    public EtcdQueue(EtcdClient client, String dir, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1");
+        }
+        this.client = client;
+        this.dir = dir;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Adds an item to the end of the queue
+     */
+    public EtcdResult offer(String value) throws EtcdClientException {
+        return client.createInOrder(dir, value, null);
+    }
+
+    /**
+     * Adds an item to the end of the queue, without blocking
+     */
+    public ListenableFuture<EtcdResult> offerAsync(String value) throws EtcdClientException {
+        return client.createInOrderAsync(dir, value, null);
+    }
+
+    /**
+     * Takes the item at the head of the queue; returns null if the queue is empty
+     */
+    public EtcdNode poll() throws EtcdClientException {
+        List<EtcdNode> items = drain(1);
+        return items.isEmpty() ? null : items.get(0);
+    }
+
+    /**
+     * Takes the item at the head of the queue, waiting for one if the queue is empty
+     */
+    public EtcdNode take() throws EtcdClientException, InterruptedException {
+        return drain(1, Long.MAX_VALUE, TimeUnit.NANOSECONDS).get(0);
+    }
+
+    /**
+     * Takes up to <code>max</code> items from the head of the queue, without waiting; returns an empty list if the queue
+     * is empty
+     */
+    public List<EtcdNode> drain(int max) throws EtcdClientException {
+        try {
+            return drain(max, 0, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            // Does not wait, so is never interrupted
+            Thread.currentThread().interrupt();
+            throw new EtcdClientException("Interrupted draining queue", e);
+        }
+    }
+
+    /**
+     * Takes up to <code>max</code> items from the head of the queue, waiting up to the timeout for the first; returns
+     * an empty list if none arrived in time
+     */
+    public List<EtcdNode> drain(int max, long timeout, TimeUnit unit) throws EtcdClientException,
+            InterruptedException {
+        if (max < 1) {
+            throw new IllegalArgumentException("max must be at least 1");
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            if (listed.isEmpty()) {
+                EtcdResult listing = list();
+                if (listed.isEmpty()) {
+                    // Wait for something to be added, watching from just after the listing so nothing is missed
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0 || !await(listing.etcdIndex, remaining)) {
+                        return Collections.emptyList();
+                    }
+                    continue;
+                }
+            }
+            List<EtcdNode> claimed = claim(max);
+            if (!claimed.isEmpty()) {
+                return claimed;
+            }
+        }
+    }
+
+    /**
+     * Claims up to a batch of the listed items, all at once; returns those that were claimed (others were taken by
+     * another consumer), in order. Items whose delete failed are put back to be claimed again; if nothing was claimed,
+     * the failure is thrown.
+     */
+    List<EtcdNode> claim(int max) throws EtcdClientException {
+        int n = Math.min(Math.min(max, batchSize), listed.size());
+        List<EtcdNode> candidates = Lists.newArrayListWithCapacity(n);
+        List<ListenableFuture<EtcdResult>> deletes = Lists.newArrayListWithCapacity(n);
+        for (int i = 0; i < n; i++) {
+            EtcdNode item = listed.poll();
+            candidates.add(item);
+            deletes.add(client.compareAndDeleteAsync(item.key, item.modifiedIndex));
+        }
+        if (listed.size() < batchSize && prefetch == null) {
+            prefetch = listAsync();
+        }
+
+        // Wait for them all, then look at each
+        EtcdClient.syncGet(Futures.successfulAsList(deletes));
+        List<EtcdNode> claimed = Lists.newArrayListWithCapacity(n);
+        List<EtcdNode> failed = Lists.newArrayList();
+        EtcdClientException failure = null;
+        for (int i = 0; i < n; i++) {
+            EtcdResult result;
+            try {
+                result = EtcdClient.syncGet(deletes.get(i));
+            } catch (EtcdClientException e) {
+                failed.add(candidates.get(i));
+                failure = e;
+                continue;
+            }
+            // Not found (null) or compare failed: another consumer took it
+            if (result != null && !result.isError()) {
+                claimed.add(candidates.get(i));
+            }
+        }
+
+        for (int i = failed.size() - 1; i >= 0; i--) {
+            listed.addFirst(failed.get(i));
+        }
+        if (claimed.isEmpty() && failure != null) {
+            throw failure;
+        }
+        return claimed;
+    }
+
+    /**
+     * Adds the items that have appeared since the last listing; returns the listing
+     */
+    EtcdResult list() throws EtcdClientException {
+        ListenableFuture<EtcdResult> listing = prefetch;
+        prefetch = null;
+        if (listing == null) {
+            listing = listAsync();
+        }
+        EtcdResult result = EtcdClient.syncGet(listing);
+        if (result.node != null && result.node.nodes != null) {
+            for (EtcdNode item : result.node.nodes) {
+                if (!item.dir && (lastListed == null || item.key.compareTo(lastListed) > 0)) {
+                    listed.add(item);
+                    lastListed = item.key;
+                }
+            }
+        }
+        return result;
+    }
+
+    ListenableFuture<EtcdResult> listAsync() throws EtcdClientException {
+        // A missing directory is an empty queue; the error result still carries the index to watch from
+        return client.asyncRead(client.buildKeyUri(dir, "?sorted=true"), new int[] { 200, 404 }, 100);
+    }
+
+    /**
+     * Waits for a change beneath the directory after the index; returns false on timeout
+     */
+    boolean await(Long index, long timeoutNanos) throws EtcdClientException, InterruptedException {
+        try {
+            // A poll that ended without an event just means listing again
+            EtcdLock.await(client.watch(dir, index != null ? index + 1 : null, true), timeoutNanos);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (EtcdClientException e) {
+            if (e.isEtcdError(401)) {
+                // etcd no longer has the history; just list again
+                return true;
+            }
+            throw e;
+        }
+    }
+}
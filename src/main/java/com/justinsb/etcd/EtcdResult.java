@@ -12,6 +12,9 @@ public class EtcdResult {
 	public String cause;
 	public int errorIndex;
 
+	// The X-Etcd-Index header: the index of the store when the response was generated
+	public Long etcdIndex;
+
 	public boolean isError() {
 		return errorCode != null;
 	}
@@ -0,0 +1,48 @@
+package com.justinsb.etcd;
+
+/**
+ * Limits retries and hedges to a fraction of the requests sent, plus a small allowance each second.
+ *
+ * Each request deposits <code>ratio</code> of a retry, and each retry withdraws one; deposits are capped at what the
+ * last {@link #WINDOW} requests would have earned, so a long quiet spell does not bank an unbounded burst.
+ */
+class EtcdRetryBudget {
+    static final int WINDOW = 1000;
+
+    final double ratio;
+    final int minPerSecond;
+
+    // Guarded by this
+    double deposits;
+    double allowance;
+    long refilledAt = System.nanoTime();
+
+    EtcdRetryBudget(double ratio, int minPerSecond) {
+        this.ratio = ratio;
+        this.minPerSecond = minPerSecond;
+        this.allowance = minPerSecond;
+    }
+
+    synchronized void requestSent() {
+        deposits = Math.min(deposits + ratio, ratio * WINDOW);
+    }
+
+    /**
+     * Withdraws a retry; returns false if the budget is spent
+     */
+    synchronized boolean tryRetry() {
+        long now = System.nanoTime();
+        allowance = Math.min(allowance + (now - refilledAt) / 1e9 * minPerSecond, minPerSecond);
+        refilledAt = now;
+
+        if (deposits >= 1) {
+            deposits -= 1;
+            return true;
+        }
+        if (allowance >= 1) {
+            allowance -= 1;
+            return true;
+        }
+        return false;
+    }
+}
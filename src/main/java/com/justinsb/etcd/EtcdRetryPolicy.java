@@ -0,0 +1,85 @@
+package com.justinsb.etcd;
+
+import java.util.Random;
+
+/**
+ * When an {@link EtcdClient} retries a request that failed at the connection level, and when it hedges a slow read.
+ *
+ * A failed request first moves on to any member it has not yet tried. Once every member has been tried, it is retried
+ * (against all of them again) after an exponential backoff with jitter, up to <code>maxRetries</code> times. Reads and
+ * watches are always safe to retry; writes are retried only if they cannot have reached etcd (the connection was
+ * refused), unless <code>retryIdempotentWrites</code> is set. Retries and hedges are limited by a budget, so that an
+ * outage does not multiply the load on the cluster. Times are in milliseconds.
+ */
+public class EtcdRetryPolicy {
+    static final Random random = new Random();
+
+    /**
+     * How many times a request is retried after trying every member
+     */
+    public int maxRetries = 2;
+
+    /**
+     * The backoff before the first retry; it is multiplied for each later retry
+     */
+    public long initialBackoff = 50;
+
+    public double backoffMultiplier = 2;
+
+    public long maxBackoff = 1000;
+
+    /**
+     * The fraction of each backoff that is randomized, so that clients do not retry in lockstep
+     */
+    public double jitter = 0.5;
+
+    /**
+     * Whether unconditional sets and deletes are retried even when they may have reached etcd. The outcome is the
+     * same, but the write may be applied twice (so watchers see it twice), and a retried delete can report the key as
+     * not found.
+     */
+    public boolean retryIdempotentWrites = false;
+
+    /**
+     * Retries (and hedges) may add this fraction to the requests sent
+     */
+    public double retryBudgetRatio = 0.1;
+
+    /**
+     * Retries allowed each second regardless of the ratio, so that a quiet client can still retry
+     */
+    public int minRetriesPerSecond = 10;
+
+    /**
+     * Whether a read that is slower than usual is also sent to another member, using whichever answers first
+     */
+    public boolean hedgeReads = false;
+
+    /**
+     * The percentile of recent read latency after which a read is hedged
+     */
+    public double hedgePercentile = 95;
+
+    /**
+     * The least time before a read is hedged
+     */
+    public long minHedgeDelay = 5;
+
+    /**
+     * A policy that never retries or hedges; failed requests still move on to members not yet tried
+     */
+    public static EtcdRetryPolicy none() {
+        EtcdRetryPolicy policy = new EtcdRetryPolicy();
+        policy.maxRetries = 0;
+        return policy;
+    }
+
+    /**
+     * The delay before the given retry (counting from 0)
+     */
+    long backoff(int retry) {
+        double backoff = initialBackoff * Math.pow(backoffMultiplier, retry);
+        backoff = Math.min(backoff, maxBackoff);
+        return (long) (backoff * (1 - jitter * random.nextDouble()));
+    }
+}
@@ -0,0 +1,140 @@
+package com.justinsb.etcd;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Allocates unique ids from a counter held in a key, reserving them in blocks so that etcd sees one cas per block
+ * rather than one per id.
+ *
+ * The key holds the next id that has not been reserved. Ids within a block are handed out locally without locking, and
+ * the next block is reserved in the background once most of the current one is used. Ids are unique across every
+ * sequence on the key, and increase within a single sequence, but not across sequences; ids reserved but not used
+ * (for example, by a process that exits) are skipped.
+ */
+public class EtcdSequence {
+    public static final int DEFAULT_BLOCK_SIZE = 1000;
+
+    // The next block is reserved once this fraction of the current one is used
+    static final double PREFETCH_AT = 0.75;
+
+    /**
+     * A reserved range of ids, from start (inclusive) to end (exclusive)
+     */
+    static class Block {
+        final AtomicLong next;
+        final long end;
+        final long prefetchAt;
+
+        Block(long start, long end) {
+            this.next = new AtomicLong(start);
+            this.end = end;
+            this.prefetchAt = start + (long) ((end - start) * PREFETCH_AT);
+        }
+    }
+
+    final EtcdClient client;
+    final String key;
+    final int blockSize;
+
+    volatile Block current;
+
+    // Guarded by this
+    ListenableFuture<Block> prefetched;
+
+    public EtcdSequence(EtcdClient client, String key) {
+        this(client, key, DEFAULT_BLOCK_SIZE);
+    }
+
+    public EtcdSequence(EtcdClient client, String key, int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize must be at least 1");
+        }
+        this.client = client;
+        this.key = key;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Allocates the next id. Only blocks (to reserve a block) when the ids reserved so far have all been used.
+     */
+    public long next() throws EtcdClientException {
+        while (true) {
+            Block block = current;
+            if (block != null) {
+                long id = block.next.getAndIncrement();
+                if (id < block.end) {
+                    if (id == block.prefetchAt) {
+                        prefetch();
+                    }
+                    return id;
+                }
+            }
+            advance(block);
+        }
+    }
+
+    synchronized void prefetch() {
+        if (prefetched == null) {
+            prefetched = reserveAsync();
+        }
+    }
+
+    /**
+     * Moves on from an exhausted block to the next, waiting for it to be reserved if need be
+     */
+    synchronized void advance(Block exhausted) throws EtcdClientException {
+        if (current != exhausted) {
+            // Another thread already moved on
+            return;
+        }
+        ListenableFuture<Block> next = prefetched;
+        prefetched = null;
+        if (next == null) {
+            next = reserveAsync();
+        }
+        current = EtcdClient.syncGet(next);
+    }
+
+    /**
+     * Reserves the next block: reads the counter and advances it with a cas, starting again if someone else advanced
+     * it first
+     */
+    ListenableFuture<Block> reserveAsync() {
+        ListenableFuture<EtcdResult> read;
+        try {
+            read = client.getAsync(key);
+        } catch (EtcdClientException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+        return Futures.transform(read, new AsyncFunction<EtcdResult, Block>() {
+            public ListenableFuture<Block> apply(EtcdResult result) throws Exception {
+                if (result == null || result.node == null) {
+                    return claim(client.createAsync(key, Long.toString(blockSize), null), 0);
+                }
+                long start;
+                try {
+                    start = Long.parseLong(result.node.value);
+                } catch (NumberFormatException e) {
+                    throw new EtcdClientException("Sequence " + key + " holds a value that is not a number", e);
+                }
+                return claim(client.casAsync(key, result.node.value, Long.toString(start + blockSize)), start);
+            }
+        });
+    }
+
+    ListenableFuture<Block> claim(ListenableFuture<EtcdResult> write, final long start) {
+        return Futures.transform(write, new AsyncFunction<EtcdResult, Block>() {
+            public ListenableFuture<Block> apply(EtcdResult result) {
+                if (result.isError()) {
+                    // Lost the race (101 from the cas, 105 from the create)
+                    return reserveAsync();
+                }
+                return Futures.immediateFuture(new Block(start, start + blockSize));
+            }
+        });
+    }
+}
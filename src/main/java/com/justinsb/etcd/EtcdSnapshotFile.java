@@ -0,0 +1,213 @@
+package com.justinsb.etcd;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Saves the contents of a {@link CachingEtcdClient} to a local file, and loads them back, so a restarted process can
+ * serve from the cache at once and catch up from the saved index rather than re-reading the whole subtree.
+ *
+ * The file is a flat run of records (key, value, indexes and expiry time for each node, then the directories with
+ * evicted children), read back through a memory mapping. It is written to a temporary file and renamed over the old
+ * one, so a crash mid-write leaves the previous snapshot intact.
+ */
+class EtcdSnapshotFile {
+    static final int MAGIC = 0x4a45534e; // "JESN"
+    static final int VERSION = 1;
+
+    static final byte DIR = 1;
+    static final byte HAS_VALUE = 2;
+
+    /**
+     * The contents of a snapshot
+     */
+    static class Contents {
+        final long index;
+        final ConcurrentHashMap<String, CachingEtcdClient.Entry> entries;
+        final Set<String> incomplete;
+
+        Contents(long index, ConcurrentHashMap<String, CachingEtcdClient.Entry> entries, Set<String> incomplete) {
+            this.index = index;
+            this.entries = entries;
+            this.incomplete = incomplete;
+        }
+    }
+
+    final File file;
+
+    EtcdSnapshotFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Writes a snapshot of the entries, as of the index. Saves are serialized, as they all write the same temporary
+     * file.
+     */
+    synchronized void save(String prefix, long index, Collection<CachingEtcdClient.Entry> entries,
+            Collection<String> incomplete) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, prefix);
+            out.writeLong(index);
+
+            // Entries may be added while we write; the count is of those actually written, so goes at the end
+            int count = 0;
+            for (CachingEtcdClient.Entry entry : entries) {
+                EtcdNode node = entry.node;
+                if (node.key == null) {
+                    // The root, as listed by etcd
+                    continue;
+                }
+                byte flags = 0;
+                if (node.dir) {
+                    flags |= DIR;
+                }
+                if (node.value != null) {
+                    flags |= HAS_VALUE;
+                }
+                out.writeByte(flags);
+                writeString(out, node.key);
+                if (node.value != null) {
+                    writeString(out, node.value);
+                }
+                out.writeLong(node.createdIndex);
+                out.writeLong(node.modifiedIndex);
+                out.writeLong(entry.expiresAt);
+                count++;
+            }
+            out.writeByte(-1);
+            out.writeInt(count);
+
+            out.writeInt(incomplete.size());
+            for (String key : incomplete) {
+                writeString(out, key);
+            }
+        } finally {
+            out.close();
+        }
+
+        if (!temp.renameTo(file)) {
+            // Not atomic, but some platforms will not rename over an existing file
+            file.delete();
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not rename " + temp + " to " + file);
+            }
+        }
+    }
+
+    /**
+     * Reads a snapshot of the subtree at the prefix; returns null if there is none. Nodes whose TTL has run out since
+     * the snapshot was taken are skipped.
+     */
+    Contents load(String prefix, long now) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return read(buffer, prefix, now);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Snapshot " + file + " is truncated");
+        } finally {
+            in.close();
+        }
+    }
+
+    Contents read(ByteBuffer buffer, String prefix, long now) throws IOException {
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new IOException("Snapshot " + file + " is not in a format we understand");
+        }
+        String savedPrefix = readString(buffer);
+        if (!savedPrefix.equals(prefix)) {
+            throw new IOException("Snapshot " + file + " is of " + savedPrefix + ", not " + prefix);
+        }
+        long index = buffer.getLong();
+
+        ConcurrentHashMap<String, CachingEtcdClient.Entry> entries =
+                new ConcurrentHashMap<String, CachingEtcdClient.Entry>();
+        int count = 0;
+        while (true) {
+            byte flags = buffer.get();
+            if (flags == -1) {
+                break;
+            }
+            EtcdNode node = new EtcdNode();
+            node.dir = (flags & DIR) != 0;
+            node.key = readString(buffer);
+            if ((flags & HAS_VALUE) != 0) {
+                node.value = readString(buffer);
+            }
+            node.createdIndex = buffer.getLong();
+            node.modifiedIndex = buffer.getLong();
+            long expiresAt = buffer.getLong();
+            count++;
+
+            if (expiresAt != 0) {
+                if (now >= expiresAt) {
+                    // Expired while we were down; the watch will bring the expiry (or a newer value)
+                    continue;
+                }
+                node.ttl = (int) ((expiresAt - now + 999) / 1000);
+            }
+            entries.put(node.key, new CachingEtcdClient.Entry(node, node.dir ? new ConcurrentSkipListSet<String>()
+                    : null, expiresAt, now));
+        }
+        if (buffer.getInt() != count) {
+            throw new IOException("Snapshot " + file + " is corrupt");
+        }
+
+        Set<String> incomplete = new ConcurrentSkipListSet<String>();
+        for (int n = buffer.getInt(); n > 0; n--) {
+            incomplete.add(readString(buffer));
+        }
+
+        // Relink children to their directories
+        for (CachingEtcdClient.Entry entry : entries.values()) {
+            String parentKey = EtcdKeys.parentOf(entry.node.key);
+            CachingEtcdClient.Entry parent = parentKey != null ? entries.get(parentKey) : null;
+            if (parent != null && parent.children != null) {
+                parent.children.add(entry.node.key);
+            }
+        }
+
+        return new Contents(index, entries, incomplete);
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (buffer.hasArray()) {
+            String s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, Charsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return s;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+}
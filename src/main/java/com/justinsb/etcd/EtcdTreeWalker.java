@@ -0,0 +1,181 @@
+package com.justinsb.etcd;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Walks a subtree depth-first, one directory listing at a time, so that only the directories being read (rather than
+ * the whole subtree) are held in memory.
+ *
+ * Each directory is read with its own (non-recursive) request. The walker keeps several of those requests in flight,
+ * reading ahead the directories that the walk will reach next, so a scan of a large tree is limited by the connections
+ * available rather than by round trips. A predicate decides which directories to descend into; a directory that is
+ * pruned is still returned, but nothing beneath it is read.
+ *
+ * Errors reading a directory are thrown from {@link #hasNext()} or {@link #next()} as an {@link IllegalStateException}
+ * wrapping the {@link EtcdClientException}. A directory that is deleted during the walk is treated as empty.
+ */
+public class EtcdTreeWalker implements Iterator<EtcdNode>, Closeable {
+    public static final int DEFAULT_CONCURRENCY = 8;
+
+    final EtcdClient client;
+    final Predicate<? super EtcdNode> descend;
+    final int concurrency;
+
+    /**
+     * The rest of the walk, in order: nodes still to return, and listings of directories still to expand
+     */
+    final Deque<Object> pending = new ArrayDeque<Object>();
+
+    /**
+     * Listings not yet requested, in the order the walk will reach them
+     */
+    final Deque<Listing> unstarted = new ArrayDeque<Listing>();
+
+    int inFlight;
+    EtcdNode next;
+    boolean closed;
+
+    public EtcdTreeWalker(EtcdClient client, String key) {
+        this(client, key, Predicates.alwaysTrue(), DEFAULT_CONCURRENCY);
+    }
+
+    /**
+     * Builds a walker that descends only into directories matching the predicate, with up to
+     * <code>concurrency</code> directory reads in flight
+     */
+    public EtcdTreeWalker(EtcdClient client, String key, Predicate<? super EtcdNode> descend, int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be at least 1");
+        }
+        this.client = client;
+        this.descend = descend;
+        this.concurrency = concurrency;
+
+        Listing root = new Listing(key);
+        pending.push(root);
+        unstarted.push(root);
+    }
+
+    /**
+     * A directory whose children have not yet been returned
+     */
+    class Listing {
+        final String key;
+        ListenableFuture<EtcdResult> future;
+
+        Listing(String key) {
+            this.key = key;
+        }
+
+        void start() {
+            try {
+                future = client.getAsync(key, false);
+            } catch (EtcdClientException e) {
+                throw new IllegalStateException("Error listing " + key, e);
+            }
+            inFlight++;
+        }
+
+        List<EtcdNode> children() {
+            if (future == null) {
+                unstarted.remove(this);
+                start();
+            }
+            EtcdResult result;
+            try {
+                result = EtcdClient.syncGet(future);
+            } catch (EtcdClientException e) {
+                throw new IllegalStateException("Error listing " + key, e);
+            } finally {
+                inFlight--;
+            }
+            if (result == null || result.node == null) {
+                return null;
+            }
+            return result.node.nodes;
+        }
+    }
+
+    public boolean hasNext() {
+        if (next == null) {
+            next = advance();
+        }
+        return next != null;
+    }
+
+    public EtcdNode next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        EtcdNode node = next;
+        next = null;
+        return node;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Stops the walk, cancelling any reads in flight
+     */
+    public void close() {
+        closed = true;
+        for (Object o : pending) {
+            if (o instanceof Listing) {
+                ListenableFuture<EtcdResult> future = ((Listing) o).future;
+                if (future != null) {
+                    future.cancel(true);
+                }
+            }
+        }
+        pending.clear();
+        unstarted.clear();
+    }
+
+    EtcdNode advance() {
+        while (!closed && !pending.isEmpty()) {
+            Object o = pending.pop();
+            if (o instanceof EtcdNode) {
+                return (EtcdNode) o;
+            }
+
+            List<EtcdNode> children = ((Listing) o).children();
+            if (children != null) {
+                expand(children);
+            }
+            readAhead();
+        }
+        return null;
+    }
+
+    /**
+     * Queues the children of a directory; they come before everything else still pending
+     */
+    void expand(List<EtcdNode> children) {
+        for (int i = children.size() - 1; i >= 0; i--) {
+            EtcdNode child = children.get(i);
+            if (child.dir && descend.apply(child)) {
+                Listing listing = new Listing(child.key);
+                pending.push(listing);
+                unstarted.push(listing);
+            }
+            pending.push(child);
+        }
+    }
+
+    void readAhead() {
+        while (inFlight < concurrency && !unstarted.isEmpty()) {
+            unstarted.pop().start();
+        }
+    }
+}
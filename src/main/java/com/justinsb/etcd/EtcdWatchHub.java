@@ -0,0 +1,245 @@
+package com.justinsb.etcd;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Shares watches between many subscribers, so that one long-poll serves every subscriber beneath a prefix.
+ *
+ * A subscription on a key that lies beneath an existing shared watch joins that watch; otherwise a new recursive watch
+ * is started on the key. Prefixes that many subscribers will use can be registered up front with
+ * {@link #watchPrefix(String)}, so that every subscription beneath them shares a single connection. Events are
+ * dispatched to subscribers by matching their keys.
+ *
+ * A new shared watch first reads the current etcd index and follows from just after it, so every change made after
+ * {@link #subscribe(String, boolean, EtcdWatchListener)} returns is delivered.
+ */
+public class EtcdWatchHub implements Closeable {
+    static final Logger log = LoggerFactory.getLogger(EtcdWatchHub.class);
+
+    final EtcdClient client;
+    final Executor executor;
+
+    // Guarded by this
+    final Map<String, SharedWatch> watches = Maps.newHashMap();
+    boolean closed;
+
+    public EtcdWatchHub(EtcdClient client) {
+        this(client, MoreExecutors.sameThreadExecutor());
+    }
+
+    /**
+     * Builds a hub that calls listeners on the given executor
+     */
+    public EtcdWatchHub(EtcdClient client, Executor executor) {
+        this.client = client;
+        this.executor = executor;
+    }
+
+    /**
+     * Starts a shared watch on the prefix, kept open until the hub is closed
+     */
+    public void watchPrefix(String prefix) throws EtcdClientException {
+        prefix = EtcdKeys.normalize(prefix);
+        synchronized (this) {
+            SharedWatch watch = find(prefix);
+            if (watch != null) {
+                watch.pinned = true;
+                return;
+            }
+        }
+
+        Long index = currentIndex(prefix);
+        synchronized (this) {
+            findOrCreate(prefix, index).pinned = true;
+        }
+    }
+
+    /**
+     * Subscribes to changes to the key (and, if recursive, beneath it). If no shared watch covers the key, this reads
+     * the key to start one, so blocks for a round trip to etcd.
+     */
+    public Subscription subscribe(String key, boolean recursive, EtcdWatchListener listener)
+            throws EtcdClientException {
+        key = EtcdKeys.normalize(key);
+        synchronized (this) {
+            SharedWatch watch = find(key);
+            if (watch != null) {
+                return addSubscription(watch, key, recursive, listener);
+            }
+        }
+
+        Long index = currentIndex(key);
+        synchronized (this) {
+            return addSubscription(findOrCreate(key, index), key, recursive, listener);
+        }
+    }
+
+    Subscription addSubscription(SharedWatch watch, String key, boolean recursive, EtcdWatchListener listener) {
+        Subscription subscription = new Subscription(watch, key, recursive, listener);
+        watch.subscriptions.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * The number of long-polls the hub is holding open
+     */
+    public synchronized int getWatchCount() {
+        return watches.size();
+    }
+
+    public synchronized void close() {
+        closed = true;
+        for (SharedWatch watch : watches.values()) {
+            watch.stream.close();
+        }
+        watches.clear();
+    }
+
+    /**
+     * Finds the shared watch covering the key, or null if there is none; called holding the lock
+     */
+    SharedWatch find(String key) {
+        if (closed) {
+            throw new IllegalStateException("Hub is closed");
+        }
+        for (String prefix = key; prefix != null; prefix = EtcdKeys.parentOf(prefix)) {
+            SharedWatch watch = watches.get(prefix);
+            if (watch != null) {
+                return watch;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the shared watch covering the key, or starts one from the given index; called holding the lock. Another
+     * caller may have started a covering watch while the index was read, in which case that one is used.
+     */
+    SharedWatch findOrCreate(String key, Long index) {
+        SharedWatch watch = find(key);
+        if (watch == null) {
+            watch = new SharedWatch(key, index);
+            watches.put(key, watch);
+            watch.stream.start();
+        }
+        return watch;
+    }
+
+    /**
+     * Reads the index to follow the key from, so the watch starts from now rather than from whenever its first poll
+     * reaches etcd. Called without the lock, as it waits for etcd.
+     */
+    Long currentIndex(String key) throws EtcdClientException {
+        EtcdResult current = EtcdClient.syncGet(client.getOrErrorAsync(key, false));
+        // Older etcd does not report the index, so can only be followed from the first poll
+        return current.etcdIndex != null ? current.etcdIndex + 1 : null;
+    }
+
+    synchronized void unsubscribe(Subscription subscription) {
+        SharedWatch watch = subscription.watch;
+        watch.subscriptions.remove(subscription);
+        if (watch.subscriptions.isEmpty() && !watch.pinned && watches.get(watch.prefix) == watch) {
+            watches.remove(watch.prefix);
+            watch.stream.close();
+        }
+    }
+
+    /**
+     * A recursive watch, shared by the subscriptions beneath its prefix
+     */
+    class SharedWatch implements EtcdWatchListener {
+        final String prefix;
+        final EtcdWatchStream stream;
+        final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+        volatile boolean pinned;
+
+        SharedWatch(String prefix, Long index) {
+            this.prefix = prefix;
+            this.stream = new EtcdWatchStream(client, prefix, index, true, this, executor);
+        }
+
+        public void onEvent(EtcdResult event) {
+            for (Subscription subscription : subscriptions) {
+                if (subscription.matches(event.node.key)) {
+                    try {
+                        subscription.listener.onEvent(event);
+                    } catch (RuntimeException e) {
+                        log.warn("Error from watch listener on " + subscription.key, e);
+                    }
+                }
+            }
+        }
+
+        public void onResync(EtcdResult snapshot) {
+            for (Subscription subscription : subscriptions) {
+                EtcdResult view = null;
+                if (snapshot != null) {
+                    EtcdNode node = EtcdKeys.find(snapshot.node, subscription.key);
+                    if (node != null) {
+                        view = new EtcdResult();
+                        view.action = snapshot.action;
+                        view.node = node;
+                        view.etcdIndex = snapshot.etcdIndex;
+                    }
+                }
+                try {
+                    subscription.listener.onResync(view);
+                } catch (RuntimeException e) {
+                    log.warn("Error from watch listener on " + subscription.key, e);
+                }
+            }
+        }
+
+        public void onError(Throwable t) {
+            for (Subscription subscription : subscriptions) {
+                try {
+                    subscription.listener.onError(t);
+                } catch (RuntimeException e) {
+                    log.warn("Error from watch listener on " + subscription.key, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * A subscriber's interest in a key; closing it releases the shared watch once nobody else needs it
+     */
+    public class Subscription implements Closeable {
+        final SharedWatch watch;
+        final String key;
+        final boolean recursive;
+        final EtcdWatchListener listener;
+
+        Subscription(SharedWatch watch, String key, boolean recursive, EtcdWatchListener listener) {
+            this.watch = watch;
+            this.key = key;
+            this.recursive = recursive;
+            this.listener = listener;
+        }
+
+        boolean matches(String eventKey) {
+            if (eventKey.equals(key)) {
+                return true;
+            }
+            if (recursive && EtcdKeys.isUnder(eventKey, key)) {
+                return true;
+            }
+            // Deleting or expiring a directory removes everything beneath it
+            return EtcdKeys.isUnder(key, eventKey);
+        }
+
+        public void close() {
+            unsubscribe(this);
+        }
+    }
+}
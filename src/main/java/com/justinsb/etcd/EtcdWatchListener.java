@@ -0,0 +1,23 @@
+package com.justinsb.etcd;
+
+/**
+ * Receives the changes followed by an {@link EtcdWatchStream}
+ */
+public interface EtcdWatchListener {
+    /**
+     * Called for each change, in index order
+     */
+    void onEvent(EtcdResult event);
+
+    /**
+     * Called when the stream could not catch up from its index (etcd had already discarded the history), and
+     * re-read the key instead. The snapshot is the recursive get of the key, or null if it does not exist; changes
+     * since the last event may have been missed, so the snapshot should replace any state built from earlier events.
+     */
+    void onResync(EtcdResult snapshot);
+
+    /**
+     * Called when a watch request fails; the stream keeps retrying, with backoff
+     */
+    void onError(Throwable t);
+}
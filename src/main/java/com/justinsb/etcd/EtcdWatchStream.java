@@ -0,0 +1,223 @@
+package com.justinsb.etcd;
+
+import java.io.Closeable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Follows a key (or a subtree) continuously, by re-issuing the watch long-poll after every event.
+ *
+ * The stream tracks the index to wait for, so no event is missed between polls. If etcd has already discarded the
+ * history the stream needs (error 401), it re-reads the key with a recursive get and carries on from the index of that
+ * read.
+ *
+ * The next poll is only issued once the listener has returned, so a slow listener holds the stream back rather than
+ * queueing events in memory; etcd keeps the history in the meantime.
+ */
+public class EtcdWatchStream implements Closeable {
+    static final Logger log = LoggerFactory.getLogger(EtcdWatchStream.class);
+
+    static final long MIN_RETRY_DELAY = 100;
+    static final long MAX_RETRY_DELAY = 10000;
+
+    final EtcdClient client;
+    final String key;
+    final boolean recursive;
+    final EtcdWatchListener listener;
+    final Executor executor;
+
+    final AtomicInteger armRequests = new AtomicInteger();
+    volatile Long nextIndex;
+    volatile boolean closed;
+    volatile ListenableFuture<EtcdResult> pending;
+    long retryDelay = MIN_RETRY_DELAY;
+
+    /**
+     * Builds a stream that calls the listener from the I/O thread that received the event
+     */
+    public EtcdWatchStream(EtcdClient client, String key, Long index, boolean recursive, EtcdWatchListener listener) {
+        this(client, key, index, recursive, listener, MoreExecutors.sameThreadExecutor());
+    }
+
+    public EtcdWatchStream(EtcdClient client, String key, Long index, boolean recursive, EtcdWatchListener listener,
+            Executor executor) {
+        this.client = client;
+        this.key = key;
+        this.nextIndex = index;
+        this.recursive = recursive;
+        this.listener = listener;
+        this.executor = executor;
+    }
+
+    public void start() {
+        arm();
+    }
+
+    /**
+     * The index the next poll will wait for, or null if the stream started without one and has seen no events
+     */
+    public Long getNextIndex() {
+        return nextIndex;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public void close() {
+        closed = true;
+        ListenableFuture<EtcdResult> pending = this.pending;
+        if (pending != null) {
+            pending.cancel(true);
+        }
+    }
+
+    /**
+     * Issues the next poll. If a poll completes immediately, its callback re-arms on this same stack; the loop here
+     * turns that into iteration so catching up on a long history cannot overflow the stack.
+     */
+    void arm() {
+        if (armRequests.getAndIncrement() != 0) {
+            return;
+        }
+        do {
+            armOnce();
+        } while (armRequests.decrementAndGet() != 0);
+    }
+
+    void armOnce() {
+        if (closed) {
+            return;
+        }
+
+        if (client.listener != null) {
+            client.listener.watchRearmed(key, false);
+        }
+
+        ListenableFuture<EtcdResult> future;
+        try {
+            future = client.watch(key, nextIndex, recursive);
+        } catch (EtcdClientException e) {
+            failed(e);
+            return;
+        }
+        pending = future;
+
+        Futures.addCallback(future, new FutureCallback<EtcdResult>() {
+            public void onSuccess(EtcdResult event) {
+                if (closed) {
+                    return;
+                }
+                retryDelay = MIN_RETRY_DELAY;
+                if (event != null && event.node != null) {
+                    advance(event.node.modifiedIndex + 1);
+                    try {
+                        listener.onEvent(event);
+                    } catch (RuntimeException e) {
+                        log.warn("Error from watch listener on " + key, e);
+                    }
+                }
+                arm();
+            }
+
+            public void onFailure(Throwable t) {
+                if (closed) {
+                    return;
+                }
+                if (t instanceof EtcdClientException && ((EtcdClientException) t).isEtcdError(401)) {
+                    resync();
+                } else {
+                    failed(t);
+                }
+            }
+        }, executor);
+    }
+
+    void advance(long index) {
+        Long current = nextIndex;
+        if (current == null || index > current) {
+            nextIndex = index;
+        }
+    }
+
+    /**
+     * Re-reads the key after the history we needed was cleared
+     */
+    void resync() {
+        if (client.listener != null) {
+            client.listener.watchRearmed(key, true);
+        }
+
+        ListenableFuture<EtcdResult> future;
+        try {
+            future = client.getOrErrorAsync(key, true);
+        } catch (EtcdClientException e) {
+            failed(e);
+            return;
+        }
+        pending = future;
+
+        Futures.addCallback(future, new FutureCallback<EtcdResult>() {
+            public void onSuccess(EtcdResult snapshot) {
+                if (closed) {
+                    return;
+                }
+                if (snapshot != null && snapshot.etcdIndex != null) {
+                    nextIndex = snapshot.etcdIndex + 1;
+                } else if (snapshot != null && snapshot.node != null) {
+                    // Older etcd does not report the index; nothing in the subtree changed after its newest node
+                    nextIndex = maxModifiedIndex(snapshot.node) + 1;
+                } else {
+                    nextIndex = null;
+                }
+                try {
+                    listener.onResync(snapshot == null || snapshot.isError() ? null : snapshot);
+                } catch (RuntimeException e) {
+                    log.warn("Error from watch listener on " + key, e);
+                }
+                arm();
+            }
+
+            public void onFailure(Throwable t) {
+                if (!closed) {
+                    failed(t);
+                }
+            }
+        }, executor);
+    }
+
+    static long maxModifiedIndex(EtcdNode node) {
+        long max = node.modifiedIndex;
+        if (node.nodes != null) {
+            for (EtcdNode child : node.nodes) {
+                max = Math.max(max, maxModifiedIndex(child));
+            }
+        }
+        return max;
+    }
+
+    void failed(Throwable t) {
+        try {
+            listener.onError(t);
+        } catch (RuntimeException e) {
+            log.warn("Error from watch listener on " + key, e);
+        }
+
+        long delay = retryDelay;
+        retryDelay = Math.min(MAX_RETRY_DELAY, retryDelay * 2);
+        EtcdClient.Scheduler.INSTANCE.schedule(new Runnable() {
+            public void run() {
+                arm();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+}
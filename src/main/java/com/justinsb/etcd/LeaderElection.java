@@ -0,0 +1,248 @@
+package com.justinsb.etcd;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Elects one leader among the candidates for a key. The leader holds the key (its value is the leader's id) with a TTL,
+ * kept alive in the background; the others watch the key, and try to take it as soon as it is deleted or expires, so
+ * a new leader is elected within a watch round trip of the old one stepping down (or within the TTL, if it dies).
+ *
+ * Runs in the background once started: the listener is told when this candidate is elected and when it stops being
+ * leader, from an I/O or timer thread. Leadership is lost if the key is changed or deleted by someone else, or if it
+ * cannot be kept alive; the candidate then campaigns again.
+ */
+public class LeaderElection implements Closeable {
+    static final Logger log = LoggerFactory.getLogger(LeaderElection.class);
+
+    static final long MIN_RETRY_DELAY = 100;
+    static final long MAX_RETRY_DELAY = 10000;
+
+    /**
+     * Told when the candidate gains or loses leadership
+     */
+    public interface Listener {
+        void elected();
+
+        void revoked();
+    }
+
+    final EtcdClient client;
+    final String key;
+    final String candidate;
+    final int ttl;
+    final Listener listener;
+
+    // Guarded by this
+    boolean closed;
+    EtcdKeepAlive.Lease lease;
+    ListenableFuture<EtcdResult> pending;
+    long retryDelay = MIN_RETRY_DELAY;
+
+    volatile String leader;
+
+    /**
+     * Builds a candidate; <code>candidate</code> identifies it (and must be unique among the candidates), and a dead
+     * leader keeps the key for up to <code>ttl</code> seconds
+     */
+    public LeaderElection(EtcdClient client, String key, String candidate, int ttl, Listener listener) {
+        if (ttl < 1) {
+            throw new IllegalArgumentException("ttl must be at least 1");
+        }
+        this.client = client;
+        this.key = key;
+        this.candidate = candidate;
+        this.ttl = ttl;
+        this.listener = listener;
+    }
+
+    public void start() {
+        campaign();
+    }
+
+    /**
+     * Checks if this candidate is the leader
+     */
+    public synchronized boolean isLeader() {
+        return lease != null && !lease.isLost();
+    }
+
+    /**
+     * The id of the leader as last seen (by winning, or by watching the key), or null if none has been seen
+     */
+    public String getLeader() {
+        return leader;
+    }
+
+    /**
+     * Stops campaigning; if this candidate is the leader, it steps down (deleting the key, so another is elected at
+     * once) and the listener is told
+     */
+    public void close() {
+        EtcdKeepAlive.Lease lease;
+        synchronized (this) {
+            closed = true;
+            if (pending != null) {
+                pending.cancel(true);
+            }
+            lease = this.lease;
+            this.lease = null;
+        }
+        if (lease != null) {
+            client.keepAlive.release(lease);
+            // Told before the key goes, so the listener never overlaps with the next leader's
+            revoked();
+            try {
+                client.compareAndDelete(key, candidate);
+            } catch (EtcdClientException e) {
+                log.warn("Error stepping down as leader of " + key + "; leadership will expire", e);
+            }
+        }
+    }
+
+    synchronized void campaign() {
+        if (closed) {
+            return;
+        }
+        try {
+            pending = client.createAsync(key, candidate, ttl);
+        } catch (EtcdClientException e) {
+            failed(e);
+            return;
+        }
+        Futures.addCallback(pending, new FutureCallback<EtcdResult>() {
+            public void onSuccess(EtcdResult result) {
+                if (result.isError()) {
+                    // Someone else leads; wait from just after our attempt for the key to go
+                    follow(result.etcdIndex != null ? result.etcdIndex + 1 : null, true);
+                } else {
+                    won();
+                }
+            }
+
+            public void onFailure(Throwable t) {
+                failed(t);
+            }
+        });
+    }
+
+    void won() {
+        synchronized (this) {
+            retryDelay = MIN_RETRY_DELAY;
+            if (closed) {
+                // Closed while the create was in flight
+                try {
+                    client.compareAndDeleteAsync(key, candidate);
+                } catch (EtcdClientException e) {
+                    log.warn("Error stepping down as leader of " + key + "; leadership will expire", e);
+                }
+                return;
+            }
+            leader = candidate;
+            lease = client.keepAlive.hold(key, candidate, ttl, new Runnable() {
+                public void run() {
+                    lost();
+                }
+            });
+        }
+        try {
+            listener.elected();
+        } catch (RuntimeException e) {
+            log.warn("Error from election listener on " + key, e);
+        }
+    }
+
+    void lost() {
+        synchronized (this) {
+            if (lease == null) {
+                return;
+            }
+            lease = null;
+        }
+        revoked();
+        campaign();
+    }
+
+    void revoked() {
+        try {
+            listener.revoked();
+        } catch (RuntimeException e) {
+            log.warn("Error from election listener on " + key, e);
+        }
+    }
+
+    /**
+     * Follows the key (held by someone else) until it is removed, then campaigns again: first reads who leads, then
+     * watches from the given index.
+     */
+    synchronized void follow(Long index, final boolean readLeader) {
+        if (closed) {
+            return;
+        }
+        try {
+            if (readLeader) {
+                pending = client.getAsync(key);
+            } else {
+                pending = client.watch(key, index, false);
+            }
+        } catch (EtcdClientException e) {
+            failed(e);
+            return;
+        }
+        final Long watchIndex = index;
+        Futures.addCallback(pending, new FutureCallback<EtcdResult>() {
+            public void onSuccess(EtcdResult result) {
+                if (readLeader) {
+                    if (result == null || result.node == null) {
+                        // Already gone
+                        campaign();
+                        return;
+                    }
+                    leader = result.node.value;
+                    follow(watchIndex != null ? watchIndex : result.etcdIndex, false);
+                    return;
+                }
+
+                if (result == null) {
+                    // The poll ended without an event; watch again
+                    follow(watchIndex, false);
+                } else if (EtcdLock.isRemoval(result)) {
+                    leader = null;
+                    campaign();
+                } else {
+                    leader = result.node.value;
+                    follow(result.node.modifiedIndex + 1, false);
+                }
+            }
+
+            public void onFailure(Throwable t) {
+                // Includes etcd having discarded the history (401); campaigning again starts afresh
+                failed(t);
+            }
+        });
+    }
+
+    void failed(Throwable t) {
+        long delay;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            delay = retryDelay;
+            retryDelay = Math.min(MAX_RETRY_DELAY, retryDelay * 2);
+        }
+        log.warn("Error in election for " + key + "; retrying in " + delay + "ms", t);
+        EtcdClient.Scheduler.INSTANCE.schedule(new Runnable() {
+            public void run() {
+                campaign();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,725 @@
+package com.justinsb.etcd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-memory implementation of the etcd v2 keys API, for tests and benchmarks that cannot rely on a real etcd.
+ *
+ * Supports get/set/delete, directories, compare-and-swap, compare-and-delete, in-order keys, TTLs and watches (with
+ * waitIndex, recursive and the 401 "index cleared" error). Several servers can share one {@link Store} to simulate the
+ * members of a cluster; a member can be configured to redirect writes to a leader, to add latency, or to fail
+ * requests.
+ *
+ * Watches do not hold a server thread while they wait, so many concurrent long-polls are cheap.
+ */
+public class EtcdStubServer implements Closeable {
+	static final String KEYS_PREFIX = "/v2/keys";
+
+	static {
+		// Otherwise Nagle's algorithm and delayed acks hold each response back by tens of milliseconds
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	final Store store;
+	final HttpServer server;
+	final ExecutorService executor;
+	final ScheduledExecutorService scheduler;
+
+	volatile long latencyMillis;
+	volatile EtcdStubServer leader;
+	final AtomicInteger failNext = new AtomicInteger();
+	volatile int failStatus = 500;
+	final AtomicInteger dropNext = new AtomicInteger();
+	final AtomicLong requestCount = new AtomicLong();
+
+	/**
+	 * Starts a server on an ephemeral port, with its own store
+	 */
+	public EtcdStubServer() throws IOException {
+		this(0, new Store());
+	}
+
+	/**
+	 * Starts a server on the given port (0 for ephemeral), sharing the given store
+	 */
+	public EtcdStubServer(int port, Store store) throws IOException {
+		this.store = store;
+		this.executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true)
+				.setNameFormat("etcd-stub-%d").build());
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+				.setNameFormat("etcd-stub-timer-%d").build());
+
+		this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+		this.server.setExecutor(executor);
+		this.server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				dispatch(exchange);
+			}
+		});
+		this.server.start();
+
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				EtcdStubServer.this.store.expire();
+			}
+		}, 50, 50, TimeUnit.MILLISECONDS);
+	}
+
+	public URI getUri() {
+		return URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+	}
+
+	public Store getStore() {
+		return store;
+	}
+
+	/**
+	 * Delays every response by the given amount
+	 */
+	public void setLatency(long millis) {
+		this.latencyMillis = millis;
+	}
+
+	/**
+	 * Answers the next <code>count</code> requests with the given HTTP error status
+	 */
+	public void failNext(int count, int httpStatus) {
+		this.failStatus = httpStatus;
+		this.failNext.set(count);
+	}
+
+	/**
+	 * Closes the connection without a response for the next <code>count</code> requests
+	 */
+	public void dropNext(int count) {
+		this.dropNext.set(count);
+	}
+
+	/**
+	 * Makes this member answer writes with a 307 redirect to the given leader (null to accept writes)
+	 */
+	public void setLeader(EtcdStubServer leader) {
+		this.leader = leader;
+	}
+
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	public void close() {
+		server.stop(0);
+		scheduler.shutdownNow();
+		executor.shutdownNow();
+	}
+
+	void dispatch(HttpExchange exchange) throws IOException {
+		requestCount.incrementAndGet();
+
+		if (dropNext.get() > 0 && dropNext.getAndDecrement() > 0) {
+			exchange.close();
+			return;
+		}
+		if (failNext.get() > 0 && failNext.getAndDecrement() > 0) {
+			reply(exchange, failStatus, "text/plain", "Injected failure");
+			return;
+		}
+
+		String path = exchange.getRequestURI().getRawPath();
+		String method = exchange.getRequestMethod();
+		if (path.equals("/version")) {
+			reply(exchange, 200, "text/plain", "etcd 0.2.0-stub");
+			return;
+		}
+		if (!path.startsWith(KEYS_PREFIX)) {
+			reply(exchange, 404, "text/plain", "404 page not found");
+			return;
+		}
+
+		EtcdStubServer leader = this.leader;
+		if (leader != null && !method.equals("GET")) {
+			exchange.getResponseHeaders().set("Location",
+					leader.getUri().resolve(exchange.getRequestURI().getRawPath()).toString());
+			reply(exchange, 307, "text/plain", "Temporary Redirect");
+			return;
+		}
+
+		String key = decodeKey(path.substring(KEYS_PREFIX.length()));
+		Map<String, String> params = Maps.newHashMap();
+		parseForm(exchange.getRequestURI().getRawQuery(), params);
+		if (!method.equals("GET")) {
+			parseForm(new String(readFully(exchange.getRequestBody()), Charsets.UTF_8), params);
+		}
+
+		Response response;
+		if (method.equals("GET")) {
+			if ("true".equals(params.get("wait"))) {
+				Long waitIndex = params.containsKey("waitIndex") ? Long.valueOf(params.get("waitIndex")) : null;
+				boolean recursive = "true".equals(params.get("recursive"));
+				Watch watch = new Watch(this, exchange, key, recursive);
+				response = store.watch(watch, waitIndex);
+				if (response == null) {
+					// Deferred; completed by a later event
+					store.deliver();
+					return;
+				}
+			} else {
+				response = store.get(key, "true".equals(params.get("recursive")));
+			}
+		} else if (method.equals("PUT")) {
+			response = store.put(key, params);
+		} else if (method.equals("POST")) {
+			response = store.post(key, params);
+		} else if (method.equals("DELETE")) {
+			response = store.delete(key, params);
+		} else {
+			reply(exchange, 405, "text/plain", "Method Not Allowed");
+			return;
+		}
+		store.deliver();
+		send(exchange, response);
+	}
+
+	void send(final HttpExchange exchange, final Response response) {
+		long delay = latencyMillis;
+		if (delay <= 0) {
+			sendNow(exchange, response);
+			return;
+		}
+		scheduler.schedule(new Runnable() {
+			public void run() {
+				sendNow(exchange, response);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	void sendNow(HttpExchange exchange, Response response) {
+		exchange.getResponseHeaders().set("X-Etcd-Index", Long.toString(response.etcdIndex));
+		try {
+			reply(exchange, response.httpStatus, "application/json", response.json.toString());
+		} catch (IOException e) {
+			// Client went away
+			exchange.close();
+		}
+	}
+
+	static void reply(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+		byte[] bytes = body.getBytes(Charsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream os = exchange.getResponseBody();
+		try {
+			os.write(bytes);
+		} finally {
+			os.close();
+		}
+	}
+
+	static byte[] readFully(InputStream is) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = is.read(buffer)) != -1) {
+			baos.write(buffer, 0, n);
+		}
+		return baos.toByteArray();
+	}
+
+	static String decodeKey(String rawPath) {
+		StringBuilder sb = new StringBuilder();
+		for (String token : rawPath.split("/")) {
+			if (token.isEmpty()) {
+				continue;
+			}
+			sb.append('/');
+			sb.append(urlDecode(token));
+		}
+		if (sb.length() == 0) {
+			return "/";
+		}
+		return sb.toString();
+	}
+
+	static void parseForm(String s, Map<String, String> params) {
+		if (s == null || s.isEmpty()) {
+			return;
+		}
+		for (String pair : s.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq == -1) {
+				params.put(urlDecode(pair), "");
+			} else {
+				params.put(urlDecode(pair.substring(0, eq)), urlDecode(pair.substring(eq + 1)));
+			}
+		}
+	}
+
+	static String urlDecode(String s) {
+		try {
+			return URLDecoder.decode(s, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException();
+		}
+	}
+
+	static class Response {
+		final int httpStatus;
+		final JsonObject json;
+		final long etcdIndex;
+
+		Response(int httpStatus, JsonObject json, long etcdIndex) {
+			this.httpStatus = httpStatus;
+			this.json = json;
+			this.etcdIndex = etcdIndex;
+		}
+	}
+
+	static class Delivery {
+		final Watch watch;
+		final Response response;
+
+		Delivery(Watch watch, Response response) {
+			this.watch = watch;
+			this.response = response;
+		}
+	}
+
+	static class Watch {
+		final EtcdStubServer server;
+		final HttpExchange exchange;
+		final String key;
+		final boolean recursive;
+		long waitIndex;
+
+		Watch(EtcdStubServer server, HttpExchange exchange, String key, boolean recursive) {
+			this.server = server;
+			this.exchange = exchange;
+			this.key = key;
+			this.recursive = recursive;
+		}
+
+		boolean matches(String eventKey) {
+			if (eventKey.equals(key)) {
+				return true;
+			}
+			if (recursive && (key.equals("/") || eventKey.startsWith(key + "/"))) {
+				return true;
+			}
+			// Deleting or expiring a directory also fires watches on its contents
+			return key.startsWith(eventKey + "/");
+		}
+	}
+
+	static class Node {
+		final String key;
+		final long createdIndex;
+		long modifiedIndex;
+		String value;
+		final boolean dir;
+		long expiresAt;
+		Integer ttl;
+		final TreeMap<String, Node> children;
+
+		Node(String key, boolean dir, long index) {
+			this.key = key;
+			this.dir = dir;
+			this.createdIndex = index;
+			this.modifiedIndex = index;
+			this.children = dir ? new TreeMap<String, Node>() : null;
+		}
+
+		JsonObject toJson(boolean withChildren, boolean recursive, long now) {
+			JsonObject o = new JsonObject();
+			o.addProperty("key", key);
+			if (dir) {
+				o.addProperty("dir", true);
+			} else if (value != null) {
+				o.addProperty("value", value);
+			}
+			if (expiresAt != 0) {
+				o.addProperty("expiration", formatTime(expiresAt));
+				o.addProperty("ttl", Math.max(1, (int) ((expiresAt - now + 999) / 1000)));
+			}
+			o.addProperty("modifiedIndex", modifiedIndex);
+			o.addProperty("createdIndex", createdIndex);
+			if (dir && withChildren && !children.isEmpty()) {
+				JsonArray nodes = new JsonArray();
+				for (Node child : children.values()) {
+					nodes.add(child.toJson(recursive, recursive, now));
+				}
+				o.add("nodes", nodes);
+			}
+			return o;
+		}
+	}
+
+	static class Event {
+		final long index;
+		final String key;
+		final JsonObject json;
+
+		Event(long index, String key, JsonObject json) {
+			this.index = index;
+			this.key = key;
+			this.json = json;
+		}
+	}
+
+	/**
+	 * The key space, shared by every server that simulates a member of the same cluster
+	 */
+	public static class Store {
+		static final int HISTORY_SIZE = 1000;
+
+		final Node root = new Node("/", true, 0);
+		final ArrayDeque<Event> history = new ArrayDeque<Event>();
+		final List<Watch> watches = new ArrayList<Watch>();
+		// Responses to parked watches that an event has completed; sent by deliver(), outside the lock, so writes do
+		// not wait on the watchers' sockets
+		final Queue<Delivery> ready = new ConcurrentLinkedQueue<Delivery>();
+		long index;
+		long nextExpiry = Long.MAX_VALUE;
+
+		public synchronized long getIndex() {
+			return index;
+		}
+
+		/**
+		 * Sets a key directly, bypassing HTTP; useful for seeding large data sets
+		 */
+		public void seed(String key, String value) {
+			Map<String, String> params = Maps.newHashMap();
+			params.put("value", value);
+			put(key, params);
+			deliver();
+		}
+
+		/**
+		 * Sends the responses to the watches that events have completed; called without holding the lock, after each
+		 * operation
+		 */
+		void deliver() {
+			Delivery delivery;
+			while ((delivery = ready.poll()) != null) {
+				delivery.watch.server.send(delivery.watch.exchange, delivery.response);
+			}
+		}
+
+		synchronized Response get(String key, boolean recursive) {
+			long now = System.currentTimeMillis();
+			expire(now);
+			Node node = find(key);
+			if (node == null) {
+				return error(404, 100, "Key Not Found", key);
+			}
+			JsonObject json = new JsonObject();
+			json.addProperty("action", "get");
+			json.add("node", node.toJson(true, recursive, now));
+			return new Response(200, json, index);
+		}
+
+		synchronized Response put(String key, Map<String, String> params) {
+			long now = System.currentTimeMillis();
+			expire(now);
+			if (key.equals("/")) {
+				return error(403, 107, "Root is read only", key);
+			}
+			boolean dir = "true".equals(params.get("dir"));
+			String value = params.get("value");
+			String prevValue = params.get("prevValue");
+			String prevIndex = params.get("prevIndex");
+			String prevExist = params.get("prevExist");
+
+			Node existing = find(key);
+			String action = "set";
+			if ("false".equals(prevExist)) {
+				if (existing != null) {
+					return error(412, 105, "Key already exists", key);
+				}
+				action = "create";
+			} else if (prevValue != null || prevIndex != null) {
+				if (existing == null) {
+					return error(404, 100, "Key Not Found", key);
+				}
+				if (existing.dir) {
+					return error(403, 102, "Not a file", key);
+				}
+				if ((prevValue != null && !prevValue.equals(existing.value))
+						|| (prevIndex != null && Long.parseLong(prevIndex) != existing.modifiedIndex)) {
+					return error(412, 101, "Compare failed", "[" + prevValue + " != " + existing.value + "] ["
+							+ prevIndex + " != " + existing.modifiedIndex + "]");
+				}
+				action = "compareAndSwap";
+			} else if ("true".equals(prevExist)) {
+				if (existing == null) {
+					return error(404, 100, "Key Not Found", key);
+				}
+				action = "update";
+			}
+			if (existing != null && existing.dir) {
+				if (!dir || existing.children.size() != 0) {
+					return error(403, 102, "Not a file", key);
+				}
+			}
+
+			Node parent = mkdirs(parentOf(key), index + 1);
+			if (parent == null) {
+				return error(400, 104, "Not a directory", key);
+			}
+
+			index++;
+			Node node = new Node(key, dir, index);
+			node.value = dir ? null : (value == null ? "" : value);
+			applyTtl(node, params.get("ttl"), now);
+			parent.children.put(key, node);
+			return record(action, existing == null ? 201 : 200, node, existing, now);
+		}
+
+		synchronized Response post(String key, Map<String, String> params) {
+			long now = System.currentTimeMillis();
+			expire(now);
+			Node parent = mkdirs(key, index + 1);
+			if (parent == null) {
+				return error(400, 104, "Not a directory", key);
+			}
+			index++;
+			String childKey = String.format("%s/%020d", key.equals("/") ? "" : key, index);
+			Node node = new Node(childKey, false, index);
+			String value = params.get("value");
+			node.value = value == null ? "" : value;
+			applyTtl(node, params.get("ttl"), now);
+			parent.children.put(childKey, node);
+			return record("create", 201, node, null, now);
+		}
+
+		synchronized Response delete(String key, Map<String, String> params) {
+			long now = System.currentTimeMillis();
+			expire(now);
+			if (key.equals("/")) {
+				return error(403, 107, "Root is read only", key);
+			}
+			Node existing = find(key);
+			if (existing == null) {
+				return error(404, 100, "Key Not Found", key);
+			}
+			boolean recursive = "true".equals(params.get("recursive"));
+			if (existing.dir) {
+				if (!recursive && !"true".equals(params.get("dir"))) {
+					return error(403, 102, "Not a file", key);
+				}
+				if (!recursive && !existing.children.isEmpty()) {
+					return error(403, 108, "Directory not empty", key);
+				}
+			}
+			String action = "delete";
+			String prevValue = params.get("prevValue");
+			String prevIndex = params.get("prevIndex");
+			if (prevValue != null || prevIndex != null) {
+				if ((prevValue != null && !prevValue.equals(existing.value))
+						|| (prevIndex != null && Long.parseLong(prevIndex) != existing.modifiedIndex)) {
+					return error(412, 101, "Compare failed", "[" + prevValue + " != " + existing.value + "] ["
+							+ prevIndex + " != " + existing.modifiedIndex + "]");
+				}
+				action = "compareAndDelete";
+			}
+			find(parentOf(key)).children.remove(key);
+			index++;
+			Node tombstone = new Node(key, existing.dir, existing.createdIndex);
+			tombstone.modifiedIndex = index;
+			return record(action, 200, tombstone, existing, now);
+		}
+
+		/**
+		 * Returns the response immediately if a past event satisfies the watch, otherwise parks it and returns null
+		 */
+		synchronized Response watch(Watch watch, Long waitIndex) {
+			expire(System.currentTimeMillis());
+			if (waitIndex != null && waitIndex <= index) {
+				Event oldest = history.peekFirst();
+				if (oldest != null && waitIndex < oldest.index && history.size() >= HISTORY_SIZE) {
+					return error(400, 401, "The event in requested index is outdated and cleared",
+							"the requested history has been cleared [" + oldest.index + "/" + waitIndex + "]");
+				}
+				for (Event event : history) {
+					if (event.index >= waitIndex && watch.matches(event.key)) {
+						return new Response(200, event.json, index);
+					}
+				}
+			}
+			watch.waitIndex = waitIndex == null ? 0 : waitIndex;
+			watches.add(watch);
+			return null;
+		}
+
+		public void expire() {
+			synchronized (this) {
+				expire(System.currentTimeMillis());
+			}
+			deliver();
+		}
+
+		void expire(long now) {
+			if (now < nextExpiry) {
+				return;
+			}
+			nextExpiry = Long.MAX_VALUE;
+			List<Node> expired = new ArrayList<Node>();
+			collectExpired(root, now, expired);
+			for (Node node : expired) {
+				Node parent = find(parentOf(node.key));
+				if (parent == null || parent.children.get(node.key) != node) {
+					continue;
+				}
+				parent.children.remove(node.key);
+				index++;
+				Node tombstone = new Node(node.key, node.dir, node.createdIndex);
+				tombstone.modifiedIndex = index;
+				record("expire", 200, tombstone, node, now);
+			}
+		}
+
+		void collectExpired(Node node, long now, List<Node> expired) {
+			if (node.expiresAt != 0) {
+				if (node.expiresAt <= now) {
+					expired.add(node);
+					return;
+				}
+				nextExpiry = Math.min(nextExpiry, node.expiresAt);
+			}
+			if (node.dir) {
+				for (Node child : node.children.values()) {
+					collectExpired(child, now, expired);
+				}
+			}
+		}
+
+		void applyTtl(Node node, String ttl, long now) {
+			if (ttl == null || ttl.isEmpty()) {
+				return;
+			}
+			int seconds = Integer.parseInt(ttl);
+			node.ttl = seconds;
+			node.expiresAt = now + seconds * 1000L;
+			nextExpiry = Math.min(nextExpiry, node.expiresAt);
+		}
+
+		Response record(String action, int httpStatus, Node node, Node prev, long now) {
+			JsonObject json = new JsonObject();
+			json.addProperty("action", action);
+			json.add("node", node.toJson(false, false, now));
+			if (prev != null) {
+				json.add("prevNode", prev.toJson(false, false, now));
+			}
+
+			Event event = new Event(index, node.key, json);
+			history.addLast(event);
+			while (history.size() > HISTORY_SIZE) {
+				history.removeFirst();
+			}
+
+			Iterator<Watch> it = watches.iterator();
+			while (it.hasNext()) {
+				Watch watch = it.next();
+				if (event.index >= watch.waitIndex && watch.matches(event.key)) {
+					it.remove();
+					ready.add(new Delivery(watch, new Response(200, json, index)));
+				}
+			}
+			return new Response(httpStatus, json, index);
+		}
+
+		Response error(int httpStatus, int errorCode, String message, String cause) {
+			JsonObject json = new JsonObject();
+			json.addProperty("errorCode", errorCode);
+			json.addProperty("message", message);
+			json.addProperty("cause", cause);
+			json.addProperty("index", index);
+			return new Response(httpStatus, json, index);
+		}
+
+		Node find(String key) {
+			if (key.equals("/")) {
+				return root;
+			}
+			Node parent = find(parentOf(key));
+			if (parent == null || !parent.dir) {
+				return null;
+			}
+			return parent.children.get(key);
+		}
+
+		/**
+		 * Finds the directory, creating it and any missing parents with the index of the write that needs them
+		 */
+		Node mkdirs(String key, long createdIndex) {
+			Node node = find(key);
+			if (node != null) {
+				return node.dir ? node : null;
+			}
+			Node parent = mkdirs(parentOf(key), createdIndex);
+			if (parent == null) {
+				return null;
+			}
+			node = new Node(key, true, createdIndex);
+			parent.children.put(key, node);
+			return node;
+		}
+
+		static String parentOf(String key) {
+			int slash = key.lastIndexOf('/');
+			if (slash <= 0) {
+				return "/";
+			}
+			return key.substring(0, slash);
+		}
+	}
+
+	static String formatTime(long millis) {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.format(new Date(millis));
+	}
+
+	/**
+	 * Runs a standalone stub on the given port (default 4001), e.g. for load tests or for SmokeTest
+	 */
+	public static void main(String[] args) throws Exception {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 4001;
+		EtcdStubServer server = new EtcdStubServer(port, new Store());
+		System.out.println("etcd stub listening on " + server.getUri());
+		Thread.currentThread().join();
+	}
+}
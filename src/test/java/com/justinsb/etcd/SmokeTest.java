@@ -1,27 +1,81 @@
 package com.justinsb.etcd;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.message.BasicNameValuePair;
+import org.junit.AfterClass;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Before;
+import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.justinsb.etcd.EtcdClient;
 import com.justinsb.etcd.EtcdClientException;
 import com.justinsb.etcd.EtcdResult;
 
 public class SmokeTest {
+	/**
+	 * Runs against an in-process stub, unless pointed at a real etcd with -Detcd.uri=http://127.0.0.1:4001/
+	 */
+	static EtcdStubServer stub;
+	static URI etcdUri;
+
 	String prefix;
 	EtcdClient client;
 
+	@BeforeClass
+	public static void startEtcd() throws IOException {
+		String uri = System.getProperty("etcd.uri");
+		if (uri != null && !uri.isEmpty()) {
+			etcdUri = URI.create(uri);
+		} else {
+			stub = new EtcdStubServer();
+			etcdUri = stub.getUri();
+		}
+	}
+
+	@AfterClass
+	public static void stopEtcd() {
+		if (stub != null) {
+			stub.close();
+			stub = null;
+		}
+	}
+
 	@Before
 	public void initialize() {
 		this.prefix = "/unittest-" + UUID.randomUUID().toString();
-		this.client = new EtcdClient(URI.create("http://127.0.0.1:4001/"));
+		this.client = new EtcdClient(etcdUri);
 	}
 
 	@Test
@@ -50,6 +104,920 @@ public class SmokeTest {
 		Assert.assertEquals("get", result.action);
 		Assert.assertEquals("world", result.node.value);
 		Assert.assertNull(result.prevNode);
+
+		result = this.client.getQuorum(key);
+		Assert.assertEquals("get", result.action);
+		Assert.assertEquals("world", result.node.value);
+	}
+
+	@Test
+	public void asyncSetAndGet() throws Exception {
+		List<ListenableFuture<EtcdResult>> sets = Lists.newArrayList();
+		for (int i = 0; i < 20; i++) {
+			sets.add(this.client.setAsync(prefix + "/async/" + i, "value" + i));
+		}
+		for (EtcdResult result : Futures.allAsList(sets).get()) {
+			Assert.assertEquals("set", result.action);
+		}
+
+		List<ListenableFuture<EtcdResult>> gets = Lists.newArrayList();
+		for (int i = 0; i < 20; i++) {
+			gets.add(this.client.getAsync(prefix + "/async/" + i));
+		}
+		List<EtcdResult> results = Futures.allAsList(gets).get();
+		for (int i = 0; i < 20; i++) {
+			Assert.assertEquals("value" + i, results.get(i).node.value);
+		}
+
+		Assert.assertNull(this.client.getAsync(prefix + "/async/doesnotexist").get());
+	}
+
+	@Test
+	public void configuredClient() throws Exception {
+		EtcdClientConfig config = new EtcdClientConfig();
+		config.maxConnectionsPerRoute = 2;
+		config.ioThreadCount = 1;
+		config.requestTimeout = 1000;
+		EtcdClient configured = new EtcdClient(etcdUri, config);
+		try {
+			String key = prefix + "/configured";
+
+			// More requests than connections; they queue for the pool
+			List<ListenableFuture<EtcdResult>> sets = Lists.newArrayList();
+			for (int i = 0; i < 10; i++) {
+				sets.add(configured.setAsync(key + "/" + i, "value" + i));
+			}
+			Assert.assertEquals(10, Futures.allAsList(sets).get().size());
+
+			// Watches are not subject to the (short) request timeout
+			ListenableFuture<EtcdResult> watchFuture = configured.watch(key + "/0");
+			Thread.sleep(1500);
+			Assert.assertFalse(watchFuture.isDone());
+			configured.set(key + "/0", "changed");
+			Assert.assertEquals("changed", watchFuture.get(1, TimeUnit.SECONDS).node.value);
+		} finally {
+			configured.close();
+		}
+	}
+
+	@Test
+	public void testMetrics() throws Exception {
+		EtcdMetricsRecorder recorder = new EtcdMetricsRecorder();
+		EtcdClientConfig config = new EtcdClientConfig();
+		config.listener = recorder;
+		EtcdClient client = new EtcdClient(etcdUri, config);
+		try {
+			String key = prefix + "/metrics";
+			for (int i = 0; i < 10; i++) {
+				client.set(key, "v" + i);
+			}
+			client.get(key);
+			Assert.assertNull(client.get(key + "/missing"));
+
+			Assert.assertEquals(0, recorder.getInFlight());
+			Assert.assertEquals(10, recorder.getOperation("set").latency.getTotalCount());
+			Assert.assertEquals(10, recorder.getOperation("set").connectionWait.getTotalCount());
+			Assert.assertEquals(2, recorder.getOperation("get").decodeTime.getTotalCount());
+			Assert.assertTrue(recorder.getOperation("get").latency.getValueAtPercentile(99) > 0);
+			Assert.assertTrue(recorder.getBytesSent() > 0);
+			Assert.assertTrue(recorder.getBytesReceived() > 0);
+			Assert.assertEquals(Long.valueOf(1), recorder.getEtcdErrorCounts().get(100));
+		} finally {
+			client.close();
+		}
+
+		// A listener that throws does not stop the caller getting its result, whichever way the request is sent
+		for (int transport = 0; transport < 3; transport++) {
+			config = new EtcdClientConfig();
+			config.listener = new ThrowingListener();
+			config.blockingTransport = transport == 1;
+			config.pipelineReads = transport == 2;
+			client = new EtcdClient(etcdUri, config);
+			try {
+				String key = prefix + "/metrics";
+				for (int i = 0; i < 20; i++) {
+					Assert.assertEquals("v9", client.getAsync(key).get(1, TimeUnit.SECONDS).node.value);
+					Assert.assertEquals("v9", client.get(key).node.value);
+				}
+			} finally {
+				client.close();
+			}
+		}
+	}
+
+	static class ThrowingListener implements EtcdClientListener {
+		public void operationStarted(String operation) {
+			throw new IllegalStateException();
+		}
+
+		public void exchangeCompleted(String operation, int httpStatusCode, long connectionWaitNanos,
+				long bytesSent, long bytesReceived) {
+			throw new IllegalStateException();
+		}
+
+		public void responseDecoded(String operation, long decodeNanos) {
+			throw new IllegalStateException();
+		}
+
+		public void operationCompleted(String operation, long latencyNanos, int errorCode) {
+			throw new IllegalStateException();
+		}
+
+		public void operationFailed(String operation, long latencyNanos, Throwable t) {
+			throw new IllegalStateException();
+		}
+
+		public void operationRetried(String operation, boolean hedge) {
+			throw new IllegalStateException();
+		}
+
+		public void watchRearmed(String key, boolean resync) {
+			throw new IllegalStateException();
+		}
+	}
+
+	@Test
+	public void testCoalescedReads() throws Exception {
+		EtcdMetricsRecorder recorder = new EtcdMetricsRecorder();
+		EtcdClientConfig config = new EtcdClientConfig();
+		config.listener = recorder;
+		config.coalesceReads = true;
+		EtcdClient client = new EtcdClient(etcdUri, config);
+		try {
+			String key = prefix + "/coalesced";
+			client.set(key, "hello");
+
+			List<ListenableFuture<EtcdResult>> reads = Lists.newArrayList();
+			for (int i = 0; i < 50; i++) {
+				reads.add(client.getAsync(key));
+			}
+			// Cancelling one caller's read does not cancel the shared request
+			reads.remove(0).cancel(true);
+			for (ListenableFuture<EtcdResult> read : reads) {
+				Assert.assertEquals("hello", read.get().node.value);
+			}
+
+			long gets = recorder.getOperation("get").latency.getTotalCount();
+			Assert.assertTrue("Sent " + gets + " requests for 50 reads", gets < 50);
+			Assert.assertTrue(client.inFlightReads.isEmpty());
+
+			// Reads that do not overlap each see the latest value
+			client.set(key, "world");
+			Assert.assertEquals("world", client.get(key).node.value);
+		} finally {
+			client.close();
+		}
+	}
+
+	@Test
+	public void blockingTransport() throws Exception {
+		final Set<String> exchangeThreads = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		EtcdClientConfig config = new EtcdClientConfig();
+		config.blockingTransport = true;
+		config.maxConnectionsTotal = 4;
+		config.listener = new EtcdMetricsRecorder() {
+			@Override
+			public void exchangeCompleted(String operation, int httpStatusCode, long connectionWaitNanos,
+					long bytesSent, long bytesReceived) {
+				super.exchangeCompleted(operation, httpStatusCode, connectionWaitNanos, bytesSent, bytesReceived);
+				if (!operation.equals("watch")) {
+					exchangeThreads.add(Thread.currentThread().getName());
+				}
+			}
+		};
+		final EtcdClient client = new EtcdClient(etcdUri, config);
+		try {
+			final String key = prefix + "/blocking";
+
+			// Synchronous calls are sent from the calling thread
+			EtcdResult set = client.set(key + "/a", "hello");
+			Assert.assertEquals("hello", set.node.value);
+			Assert.assertEquals("hello", client.get(key + "/a").node.value);
+			Assert.assertNull(client.get(key + "/missing"));
+			Assert.assertEquals(1, client.listDirectory(key).size());
+			Assert.assertEquals(Collections.singleton(Thread.currentThread().getName()), exchangeThreads);
+
+			// Watches still use the reactor, so do not tie up a thread while they wait
+			ListenableFuture<EtcdResult> watch = client.watch(key + "/a", set.node.modifiedIndex + 1, false);
+			client.set(key + "/a", "world");
+			Assert.assertEquals("world", watch.get(1, TimeUnit.SECONDS).node.value);
+
+			// Async calls that nobody waits for are queued for the pool, which has a thread per connection
+			exchangeThreads.clear();
+			List<ListenableFuture<EtcdResult>> writes = Lists.newArrayList();
+			for (int i = 0; i < 20; i++) {
+				writes.add(client.setAsync(key + "/" + i, "v" + i));
+			}
+			Assert.assertEquals(20, Futures.allAsList(writes).get(5, TimeUnit.SECONDS).size());
+			Assert.assertTrue(exchangeThreads.size() <= 4);
+			Assert.assertFalse(exchangeThreads.contains(Thread.currentThread().getName()));
+
+			List<Thread> threads = Lists.newArrayList();
+			final AtomicInteger reads = new AtomicInteger();
+			for (int i = 0; i < 8; i++) {
+				threads.add(new Thread() {
+					@Override
+					public void run() {
+						try {
+							for (int j = 0; j < 50; j++) {
+								Assert.assertEquals("v" + j % 20, client.get(key + "/" + j % 20).node.value);
+								reads.incrementAndGet();
+							}
+						} catch (EtcdClientException e) {
+							throw new IllegalStateException(e);
+						}
+					}
+				});
+			}
+			for (Thread thread : threads) {
+				thread.start();
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			Assert.assertEquals(400, reads.get());
+
+			// A synchronous call that fails before sending leaves later async calls to the pool
+			try {
+				client.setBytes(key + "/bytes", null);
+				Assert.fail();
+			} catch (NullPointerException e) {
+				// expected
+			}
+			exchangeThreads.clear();
+			client.getAsync(key + "/a").get(1, TimeUnit.SECONDS);
+			Assert.assertFalse(exchangeThreads.contains(Thread.currentThread().getName()));
+		} finally {
+			client.close();
+		}
+
+		// Synchronous reads are hedged
+		ServerSocket blackHole = new ServerSocket(0);
+		EtcdMetricsRecorder recorder = new EtcdMetricsRecorder();
+		config = new EtcdClientConfig();
+		config.blockingTransport = true;
+		config.listener = recorder;
+		config.retryPolicy.hedgeReads = true;
+		config.retryPolicy.minRetriesPerSecond = 100;
+		// Without hedging, a read sent to the black hole would time out
+		config.requestTimeout = 2000;
+		EtcdClient hedged = new EtcdClient(Lists.newArrayList(URI.create("http://127.0.0.1:"
+				+ blackHole.getLocalPort() + "/"), etcdUri), config);
+		try {
+			String key = prefix + "/blocking/hedged";
+			this.client.set(key, "hello");
+			for (int i = 0; i < EtcdLatencyTracker.RECOMPUTE_EVERY; i++) {
+				hedged.readLatency.record(TimeUnit.MILLISECONDS.toNanos(1));
+			}
+
+			long start = System.currentTimeMillis();
+			for (int i = 0; i < 10; i++) {
+				Assert.assertEquals("hello", hedged.get(key).node.value);
+			}
+			Assert.assertTrue(System.currentTimeMillis() - start < 2000);
+			Assert.assertTrue(recorder.getHedges() > 0);
+		} finally {
+			hedged.close();
+			blackHole.close();
+		}
+	}
+
+	@Test
+	public void pipelinedReads() throws Exception {
+		final AtomicInteger pipelined = new AtomicInteger();
+		EtcdClientConfig config = new EtcdClientConfig();
+		config.pipelineReads = true;
+		config.requestTimeout = 1000;
+		config.retryPolicy = EtcdRetryPolicy.none();
+		EtcdMetricsRecorder recorder = new EtcdMetricsRecorder() {
+			@Override
+			public void exchangeCompleted(String operation, int httpStatusCode, long connectionWaitNanos,
+					long bytesSent, long bytesReceived) {
+				super.exchangeCompleted(operation, httpStatusCode, connectionWaitNanos, bytesSent, bytesReceived);
+				if (Thread.currentThread().getName().startsWith("etcd-client-pipeline-")) {
+					pipelined.incrementAndGet();
+				}
+			}
+		};
+		config.listener = recorder;
+		EtcdClient client = new EtcdClient(etcdUri, config);
+		try {
+			String key = prefix + "/pipelined";
+			for (int i = 0; i < 20; i++) {
+				this.client.set(key + "/" + i, "v" + i);
+			}
+
+			// Reads use the pool until the pipeline has connected
+			for (int i = 0; i < 100 && pipelined.get() == 0; i++) {
+				Assert.assertEquals("v0", client.get(key + "/0").node.value);
+				Thread.sleep(10);
+			}
+			Assert.assertTrue(pipelined.get() > 0);
+
+			// Responses are matched to their requests
+			List<ListenableFuture<EtcdResult>> reads = Lists.newArrayList();
+			for (int i = 0; i < 200; i++) {
+				reads.add(client.getAsync(key + "/" + i % 20));
+			}
+			for (int i = 0; i < 200; i++) {
+				Assert.assertEquals("v" + i % 20, reads.get(i).get(5, TimeUnit.SECONDS).node.value);
+			}
+			Assert.assertTrue(pipelined.get() > 20);
+			Assert.assertNull(client.get(key + "/missing"));
+
+			// Writes and watches are not pipelined
+			EtcdResult set = client.set(key + "/0", "changed");
+			ListenableFuture<EtcdResult> watch = client.watch(key + "/0", set.node.modifiedIndex + 1, false);
+			Assert.assertEquals("v0", this.client.set(key + "/0", "v0").node.value);
+			Assert.assertEquals("v0", watch.get(1, TimeUnit.SECONDS).node.value);
+
+			if (stub != null) {
+				// A read on a dropped connection is sent again through the pool, even with retries off, as it says
+				// nothing about the member
+				stub.dropNext(1);
+				Assert.assertEquals("v1", client.get(key + "/1").node.value);
+				Assert.assertEquals("v2", client.get(key + "/2").node.value);
+
+				// Once the pipeline is back, a read on it times out like any other
+				pipelined.set(0);
+				for (int i = 0; i < 100 && pipelined.get() == 0; i++) {
+					Assert.assertEquals("v0", client.get(key + "/0").node.value);
+					Thread.sleep(10);
+				}
+				Assert.assertTrue(pipelined.get() > 0);
+				stub.setLatency(3000);
+				long start = System.currentTimeMillis();
+				try {
+					client.getAsync(key + "/1").get(5, TimeUnit.SECONDS);
+					Assert.fail();
+				} catch (ExecutionException e) {
+					Assert.assertTrue(e.getCause() instanceof EtcdClientException);
+				} finally {
+					stub.setLatency(0);
+				}
+				Assert.assertTrue(System.currentTimeMillis() - start < 2500);
+			}
+		} finally {
+			client.close();
+		}
+	}
+
+	@Test
+	public void redirectToLeader() throws Exception {
+		EtcdEndpoints endpoints = new EtcdEndpoints(Lists.newArrayList(URI.create("http://127.0.0.1:4001/etcd/"),
+				URI.create("http://127.0.0.2:4001/etcd")), 1000);
+
+		// Members mounted beneath a path are recognized by host and port
+		EtcdEndpoints.Endpoint leader = endpoints.redirectedTo(URI.create("http://127.0.0.2:4001/etcd/v2/keys/a"));
+		Assert.assertSame(endpoints.endpoints.get(1), leader);
+		Assert.assertSame(leader, endpoints.select(true, Collections.<EtcdEndpoints.Endpoint> emptyList()));
+
+		// A leader we were not told about is used, but not added to the members
+		for (int i = 0; i < 3; i++) {
+			leader = endpoints.redirectedTo(URI.create("http://127.0.0.3:4001/v2/keys/a"));
+			Assert.assertEquals("127.0.0.3", leader.host.getHostName());
+		}
+		Assert.assertSame(leader, endpoints.leader);
+		Assert.assertEquals(2, endpoints.size());
+	}
+
+	@Test
+	public void clusterFailover() throws Exception {
+		// Nothing listens on port 1, so that member refuses connections
+		List<URI> members = Lists.newArrayList(URI.create("http://127.0.0.1:1/"),
+				etcdUri);
+		EtcdClient cluster = new EtcdClient(members);
+		String key = prefix + "/cluster";
+
+		for (int i = 0; i < 5; i++) {
+			EtcdResult result = cluster.set(key, "value" + i);
+			Assert.assertEquals("value" + i, result.node.value);
+			result = cluster.get(key);
+			Assert.assertEquals("value" + i, result.node.value);
+		}
+	}
+
+	@Test
+	public void stubFaults() throws Exception {
+		Assume.assumeNotNull(stub);
+
+		// A second member of the same cluster
+		EtcdStubServer member = new EtcdStubServer(0, stub.getStore());
+		EtcdMetricsRecorder recorder = new EtcdMetricsRecorder();
+		EtcdClientConfig config = new EtcdClientConfig();
+		config.listener = recorder;
+		EtcdClient client = new EtcdClient(member.getUri(), config);
+		try {
+			String key = prefix + "/faults";
+			this.client.set(key, "hello");
+			Assert.assertEquals("hello", client.get(key).node.value);
+
+			member.failNext(1, 500);
+			try {
+				client.get(key);
+				Assert.fail();
+			} catch (EtcdClientException e) {
+				Assert.assertTrue(e.isHttpError(500));
+			}
+
+			// A dropped connection is retried
+			member.dropNext(1);
+			Assert.assertEquals("hello", client.get(key).node.value);
+			Assert.assertEquals(1, recorder.getRetries());
+
+			member.setLatency(100);
+			long start = System.currentTimeMillis();
+			client.get(key);
+			Assert.assertTrue(System.currentTimeMillis() - start >= 100);
+			member.setLatency(0);
+
+			// A follower sends writes on to the leader
+			member.setLeader(stub);
+			long leaderRequests = stub.getRequestCount();
+			Assert.assertEquals("world", client.set(key, "world").node.value);
+			Assert.assertEquals(leaderRequests + 1, stub.getRequestCount());
+
+			// Directories made by a write take its index
+			EtcdResult nested = this.client.set(prefix + "/faults-dir/a/b", "c");
+			Assert.assertEquals(nested.node.modifiedIndex, this.client.get(prefix + "/faults-dir").node.createdIndex);
+			Assert.assertEquals(nested.node.modifiedIndex, this.client.get(prefix + "/faults-dir/a").node.createdIndex);
+		} finally {
+			client.close();
+			member.close();
+		}
+	}
+
+	@Test
+	public void retriesWithBackoff() throws Exception {
+		EtcdMetricsRecorder recorder = new EtcdMetricsRecorder();
+		EtcdClientConfig config = new EtcdClientConfig();
+		config.listener = recorder;
+		config.retryPolicy.initialBackoff = 100;
+		config.retryPolicy.jitter = 0;
+		// Nothing listens on port 1
+		EtcdClient client = new EtcdClient(URI.create("http://127.0.0.1:1/"), config);
+		try {
+			long start = System.currentTimeMillis();
+			try {
+				client.get(prefix + "/retried");
+				Assert.fail();
+			} catch (EtcdClientException e) {
+				// expected
+			}
+			Assert.assertTrue(System.currentTimeMillis() - start >= 300);
+			Assert.assertEquals(2, recorder.getRetries());
+
+			// Refused connections were never sent, so even conditional writes are retried
+			try {
+				client.cas(prefix + "/retried", "a", "b");
+				Assert.fail();
+			} catch (EtcdClientException e) {
+				// expected
+			}
+			Assert.assertEquals(4, recorder.getRetries());
+		} finally {
+			client.close();
+		}
+
+		HttpPut set = new HttpPut("/v2/keys/a");
+		set.setEntity(new UrlEncodedFormEntity(Lists.newArrayList(new BasicNameValuePair("value", "preview"))));
+		Assert.assertTrue(EtcdClient.isIdempotent(set));
+		HttpPut cas = new HttpPut("/v2/keys/a");
+		cas.setEntity(new UrlEncodedFormEntity(Lists.newArrayList(new BasicNameValuePair("value", "b"),
+				new BasicNameValuePair("prevValue", "a"))));
+		Assert.assertFalse(EtcdClient.isIdempotent(cas));
+		Assert.assertFalse(EtcdClient.isIdempotent(new HttpDelete("/v2/keys/a?prevIndex=3")));
+		Assert.assertTrue(EtcdClient.isIdempotent(new HttpDelete("/v2/keys/a")));
+		Assert.assertFalse(EtcdClient.isIdempotent(new HttpPost("/v2/keys/a")));
+		Assert.assertFalse(EtcdClient.isIdempotent(new HttpPut("/v2/keys/a?dir=true")));
+	}
+
+	@Test
+	public void hedgedReads() throws Exception {
+		// A member that accepts connections but never answers
+		ServerSocket blackHole = new ServerSocket(0);
+		EtcdMetricsRecorder recorder = new EtcdMetricsRecorder();
+		EtcdClientConfig config = new EtcdClientConfig();
+		config.listener = recorder;
+		config.retryPolicy.hedgeReads = true;
+		config.retryPolicy.minRetriesPerSecond = 100;
+		List<URI> members = Lists.newArrayList(URI.create("http://127.0.0.1:" + blackHole.getLocalPort() + "/"),
+				etcdUri);
+		EtcdClient client = new EtcdClient(members, config);
+		try {
+			String key = prefix + "/hedged";
+			this.client.set(key, "hello");
+			for (int i = 0; i < EtcdLatencyTracker.RECOMPUTE_EVERY; i++) {
+				client.readLatency.record(TimeUnit.MILLISECONDS.toNanos(1));
+			}
+
+			for (int i = 0; i < 10; i++) {
+				Assert.assertEquals("hello", client.getAsync(key).get(2, TimeUnit.SECONDS).node.value);
+			}
+			Assert.assertTrue(recorder.getHedges() > 0);
+		} finally {
+			client.close();
+			blackHole.close();
+		}
+	}
+
+	@Test
+	public void binaryValues() throws Exception {
+		Random random = new Random(42);
+		for (int length = 0; length < 10; length++) {
+			byte[] bytes = new byte[length];
+			random.nextBytes(bytes);
+			byte[] encoded = new byte[EtcdBase64.encodedLength(length)];
+			EtcdBase64.encode(ByteBuffer.wrap(bytes), encoded, 0);
+			String s = new String(encoded, Charsets.US_ASCII);
+			Assert.assertEquals(BaseEncoding.base64Url().omitPadding().encode(bytes), s);
+
+			ByteBuffer decoded = ByteBuffer.allocate(EtcdBase64.decodedLength(s));
+			EtcdBase64.decode(s, decoded);
+			Assert.assertArrayEquals(bytes, decoded.array());
+			decoded.clear();
+			EtcdBase64.decode(BaseEncoding.base64().encode(bytes), decoded);
+			Assert.assertArrayEquals(bytes, decoded.array());
+		}
+
+		String key = prefix + "/binary";
+		byte[] value = new byte[5000];
+		random.nextBytes(value);
+		ByteBuffer src = ByteBuffer.wrap(value, 100, 4000);
+		this.client.setBytes(key, src);
+		Assert.assertEquals(100, src.position());
+
+		Assert.assertArrayEquals(Arrays.copyOfRange(value, 100, 4100), this.client.getBytes(key));
+
+		ByteBuffer dst = ByteBuffer.allocate(4010);
+		dst.put((byte) 1);
+		EtcdResult result = this.client.getBytes(key, dst);
+		Assert.assertNull(result.node.value);
+		Assert.assertEquals(4001, dst.position());
+		dst.flip();
+		dst.get();
+		Assert.assertEquals(ByteBuffer.wrap(value, 100, 4000), dst);
+
+		try {
+			this.client.getBytes(key, ByteBuffer.allocate(10));
+			Assert.fail();
+		} catch (EtcdClientException e) {
+			// expected
+		}
+		Assert.assertNull(this.client.getBytes(key + "/missing", ByteBuffer.allocate(10)));
+		Assert.assertNull(this.client.getBytes(key + "/missing"));
+	}
+
+	@Test
+	public void testLock() throws Exception {
+		String key = prefix + "/lock";
+		final EtcdLock first = new EtcdLock(this.client, key, 1);
+		final EtcdLock second = new EtcdLock(this.client, key, 1);
+
+		Assert.assertTrue(first.tryLock());
+		Assert.assertFalse(second.tryLock());
+		Assert.assertFalse(second.tryLock(200, TimeUnit.MILLISECONDS));
+
+		// Held well past its TTL, by the background refresh
+		Thread.sleep(2500);
+		Assert.assertTrue(first.isHeld());
+		Assert.assertEquals(first.owner, this.client.get(key).node.value);
+
+		final BlockingQueue<Long> acquired = new LinkedBlockingQueue<Long>();
+		Thread waiter = new Thread() {
+			@Override
+			public void run() {
+				try {
+					second.lock();
+					acquired.add(System.currentTimeMillis());
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		waiter.start();
+		Thread.sleep(200);
+		long released = System.currentTimeMillis();
+		first.unlock();
+		Long at = acquired.poll(2, TimeUnit.SECONDS);
+		Assert.assertNotNull(at);
+		Assert.assertTrue("Took " + (at - released) + "ms", at - released < 500);
+		Assert.assertFalse(first.isHeld());
+
+		// Losing the key loses the lock
+		this.client.delete(key);
+		Thread.sleep(1000);
+		Assert.assertFalse(second.isHeld());
+	}
+
+	@Test
+	public void testLeaderElection() throws Exception {
+		String key = prefix + "/leader";
+		final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+		LeaderElection a = new LeaderElection(this.client, key, "a", 1, recordingListener("a", events));
+		LeaderElection b = new LeaderElection(this.client, key, "b", 1, recordingListener("b", events));
+		try {
+			a.start();
+			Assert.assertEquals("a elected", events.poll(2, TimeUnit.SECONDS));
+			b.start();
+
+			Thread.sleep(2500);
+			Assert.assertTrue(a.isLeader());
+			Assert.assertFalse(b.isLeader());
+			Assert.assertEquals("a", b.getLeader());
+			Assert.assertNull(events.poll());
+
+			a.close();
+			Assert.assertEquals("a revoked", events.poll(1, TimeUnit.SECONDS));
+			Assert.assertEquals("b elected", events.poll(1, TimeUnit.SECONDS));
+			Assert.assertTrue(b.isLeader());
+		} finally {
+			a.close();
+			b.close();
+		}
+	}
+
+	@Test
+	public void testKeepAlive() throws Exception {
+		String key = prefix + "/registrations";
+		final BlockingQueue<String> lost = new LinkedBlockingQueue<String>();
+		EtcdKeepAlive keepAlive = new EtcdKeepAlive(this.client, 8, new EtcdKeepAlive.Listener() {
+			public void leaseLost(EtcdKeepAlive.Lease lease, String reason) {
+				lost.add(lease.getKey());
+			}
+		});
+
+		List<EtcdKeepAlive.Lease> leases = Lists.newArrayList();
+		for (int i = 0; i < 100; i++) {
+			leases.add(keepAlive.register(key + "/" + i, "instance-" + i, 2));
+		}
+
+		// Every key outlives its TTL
+		Thread.sleep(4500);
+		Assert.assertEquals(100, this.client.listDirectory(key).size());
+		Assert.assertEquals(100, keepAlive.getLeases().size());
+		Assert.assertNull(lost.poll());
+
+		this.client.delete(key + "/7");
+		Assert.assertEquals(key + "/7", lost.poll(1, TimeUnit.SECONDS));
+		Assert.assertTrue(leases.get(7).isLost());
+		Assert.assertEquals(99, keepAlive.getLeases().size());
+
+		for (EtcdKeepAlive.Lease lease : leases) {
+			keepAlive.release(lease);
+		}
+		Assert.assertTrue(keepAlive.getLeases().isEmpty());
+		Thread.sleep(2500);
+		Assert.assertNull(this.client.listDirectory(key));
+		Assert.assertNull(lost.poll());
+	}
+
+	@Test
+	public void testSequence() throws Exception {
+		String key = prefix + "/sequence";
+		EtcdMetricsRecorder recorder = new EtcdMetricsRecorder();
+		EtcdClientConfig config = new EtcdClientConfig();
+		config.listener = recorder;
+		EtcdClient client = new EtcdClient(etcdUri, config);
+		try {
+			final EtcdSequence a = new EtcdSequence(client, key, 100);
+			final EtcdSequence b = new EtcdSequence(client, key, 100);
+			Assert.assertEquals(0, a.next());
+
+			final Set<Long> ids = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+			List<Thread> threads = Lists.newArrayList();
+			for (int i = 0; i < 4; i++) {
+				final EtcdSequence sequence = i % 2 == 0 ? a : b;
+				threads.add(new Thread() {
+					@Override
+					public void run() {
+						try {
+							for (int j = 0; j < 1000; j++) {
+								ids.add(sequence.next());
+							}
+						} catch (EtcdClientException e) {
+							throw new IllegalStateException(e);
+						}
+					}
+				});
+			}
+			for (Thread thread : threads) {
+				thread.start();
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			Assert.assertEquals(4000, ids.size());
+
+			// Each block of 100 is one cas (or create), plus the occasional retry
+			long writes = recorder.getOperation("set").latency.getTotalCount();
+			Assert.assertTrue("Wrote " + writes + " times", writes >= 40 && writes < 80);
+			long next = Long.parseLong(this.client.get(key).node.value);
+			Assert.assertTrue(next >= 4001 && next % 100 == 0);
+		} finally {
+			client.close();
+		}
+	}
+	@Test
+	public void testMultiGet() throws Exception {
+		final String a = prefix + "/multi/x/a";
+		final String b = prefix + "/multi/y/b";
+		this.client.set(a, "0");
+		this.client.set(b, "0");
+
+		EtcdMultiResult result = this.client.multiGet(a, b, prefix + "/multi/missing");
+		Assert.assertEquals("0", result.get(a).value);
+		Assert.assertEquals("0", result.get(b).value);
+		Assert.assertNull(result.get(prefix + "/multi/missing"));
+		Assert.assertEquals(2, result.nodes.size());
+
+		// A writer updates a, then b; a reader must never see b ahead of a, or a more than one step ahead of b
+		final AtomicBoolean stop = new AtomicBoolean();
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 1; !stop.get(); i++) {
+						client.set(a, Integer.toString(i));
+						client.set(b, Integer.toString(i));
+					}
+				} catch (EtcdClientException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+		writer.start();
+		try {
+			for (int i = 0; i < 200; i++) {
+				result = this.client.multiGet(a, b);
+				int va = Integer.parseInt(result.get(a).value);
+				int vb = Integer.parseInt(result.get(b).value);
+				Assert.assertTrue("Read a=" + va + ", b=" + vb, va == vb || va == vb + 1);
+				Assert.assertTrue(result.get(a).modifiedIndex <= result.etcdIndex);
+				Assert.assertTrue(result.get(b).modifiedIndex <= result.etcdIndex);
+			}
+		} finally {
+			stop.set(true);
+			writer.join();
+		}
+
+		// Keys in one directory are read with a single listing
+		String dir = prefix + "/multi/conf";
+		this.client.set(dir + "/host", "example.com");
+		EtcdResult last = this.client.set(dir + "/port", "80");
+		result = this.client.multiGet(dir + "/host", dir + "/port");
+		Assert.assertEquals("example.com", result.get(dir + "/host").value);
+		Assert.assertEquals("80", result.get(dir + "/port").value);
+		Assert.assertTrue(result.etcdIndex >= last.node.modifiedIndex);
+
+		// A key found missing at a later index than another key's read is not assumed missing at that earlier index
+		EtcdResult readB = this.client.get(b);
+		EtcdResult later = this.client.set(prefix + "/multi/later", "1");
+		EtcdResult missing = new EtcdResult();
+		missing.etcdIndex = later.node.modifiedIndex;
+		EtcdMultiGet multiGet = new EtcdMultiGet(this.client, Arrays.asList(prefix + "/multi/gone", b));
+		EtcdMultiGet.update(multiGet.readings.get(0), missing, false);
+		EtcdMultiGet.update(multiGet.readings.get(1), readB, false);
+		result = multiGet.check(1).get();
+		Assert.assertTrue(result.etcdIndex >= later.node.modifiedIndex);
+	}
+
+	@Test
+	public void testQueue() throws Exception {
+		final String dir = prefix + "/queue";
+		EtcdQueue producer = new EtcdQueue(client, dir);
+		Assert.assertNull(producer.poll());
+
+		for (int i = 0; i < 50; i++) {
+			producer.offer("item" + i);
+		}
+
+		// Two consumers race for the items; each gets them in order, and between them they get each exactly once
+		final List<List<String>> received = Lists.newArrayList();
+		List<Thread> threads = Lists.newArrayList();
+		for (int i = 0; i < 2; i++) {
+			final List<String> values = Collections.synchronizedList(Lists.<String> newArrayList());
+			received.add(values);
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					EtcdQueue consumer = new EtcdQueue(client, dir, 8);
+					try {
+						while (true) {
+							List<EtcdNode> items = consumer.drain(8);
+							if (items.isEmpty()) {
+								return;
+							}
+							for (EtcdNode item : items) {
+								values.add(item.value);
+							}
+						}
+					} catch (EtcdClientException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			});
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		Set<String> all = Sets.newHashSet();
+		int total = 0;
+		for (List<String> values : received) {
+			int last = -1;
+			for (String value : values) {
+				int n = Integer.parseInt(value.substring("item".length()));
+				Assert.assertTrue(n > last);
+				last = n;
+				all.add(value);
+			}
+			total += values.size();
+		}
+		Assert.assertEquals(50, total);
+		Assert.assertEquals(50, all.size());
+		Assert.assertNull(producer.poll());
+
+		// A waiting consumer is woken by the next item
+		final EtcdQueue waiting = new EtcdQueue(client, dir);
+		final BlockingQueue<EtcdNode> taken = new LinkedBlockingQueue<EtcdNode>();
+		Thread taker = new Thread() {
+			@Override
+			public void run() {
+				try {
+					taken.add(waiting.take());
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+		taker.start();
+		Thread.sleep(200);
+		Assert.assertTrue(taken.isEmpty());
+		producer.offer("late");
+		Assert.assertEquals("late", taken.poll(5, TimeUnit.SECONDS).value);
+		taker.join();
+
+		try {
+			producer.drain(0);
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+
+		if (stub != null) {
+			// An item whose delete fails is kept, and claimed on a later drain
+			for (int i = 0; i < 3; i++) {
+				producer.offer("retry" + i);
+			}
+			EtcdQueue consumer = new EtcdQueue(client, dir);
+			Set<String> values = Sets.newHashSet(consumer.poll().value);
+			consumer.prefetch.get();
+			stub.failNext(1, 500);
+			List<EtcdNode> items = consumer.drain(2);
+			Assert.assertEquals(1, items.size());
+			items.addAll(consumer.drain(2));
+			for (EtcdNode item : items) {
+				values.add(item.value);
+			}
+			Assert.assertEquals(Sets.newHashSet("retry0", "retry1", "retry2"), values);
+			Assert.assertNull(consumer.poll());
+		}
+	}
+
+
+	static LeaderElection.Listener recordingListener(final String name, final BlockingQueue<String> events) {
+		return new LeaderElection.Listener() {
+			public void elected() {
+				events.add(name + " elected");
+			}
+
+			public void revoked() {
+				events.add(name + " revoked");
+			}
+		};
+	}
+
+	@Test
+	public void keyEncoding() throws Exception {
+		String[] keys = { "/a/b", "a/b", "", "/", "/a/", "/a//b", "/my key/x&y=z", "/caf\u00e9", "/\ud83d\ude00",
+				"/~!$'()+,;:@" };
+		for (String key : keys) {
+			StringBuilder expected = new StringBuilder();
+			String stripped = key.startsWith("/") ? key.substring(1) : key;
+			for (String token : stripped.split("/", -1)) {
+				expected.append("/").append(EtcdClient.urlEscape(token));
+			}
+			Assert.assertEquals(expected.toString(), EtcdKeys.encodePath(key));
+		}
+		Assert.assertSame("/a/b", EtcdKeys.encodePath("/a/b"));
+
+		String key = prefix + "/encoding/a b&c";
+		this.client.set(key, "hello");
+		Assert.assertEquals("hello", this.client.get(key).node.value);
 	}
 
 	@Test
@@ -60,6 +1028,9 @@ public class SmokeTest {
 
 		result = this.client.get(key);
 		Assert.assertNull(result);
+
+		result = this.client.getQuorum(key);
+		Assert.assertNull(result);
 	}
 
 	@Test
@@ -179,6 +1150,276 @@ public class SmokeTest {
 		}
 	}
 
+	@Test
+	public void testWatchStream() throws Exception {
+		String key = prefix + "/stream";
+
+		EtcdResult result = this.client.set(key + "/f0", "f0");
+		final BlockingQueue<EtcdResult> events = new LinkedBlockingQueue<EtcdResult>();
+		EtcdWatchStream stream = this.client.watchStream(key, result.node.modifiedIndex + 1, true,
+				new EtcdWatchListener() {
+					public void onEvent(EtcdResult event) {
+						events.add(event);
+					}
+
+					public void onResync(EtcdResult snapshot) {
+						Assert.fail("Unexpected resync");
+					}
+
+					public void onError(Throwable t) {
+					}
+				});
+		try {
+			for (int i = 1; i <= 10; i++) {
+				this.client.set(key + "/f" + i, "f" + i);
+			}
+			this.client.delete(key + "/f0");
+
+			for (int i = 1; i <= 10; i++) {
+				EtcdResult event = events.poll(1, TimeUnit.SECONDS);
+				Assert.assertNotNull(event);
+				Assert.assertEquals("set", event.action);
+				Assert.assertEquals(key + "/f" + i, event.node.key);
+			}
+			EtcdResult event = events.poll(1, TimeUnit.SECONDS);
+			Assert.assertEquals("delete", event.action);
+			Assert.assertEquals(key + "/f0", event.node.key);
+			Assert.assertEquals(event.node.modifiedIndex + 1, (long) stream.getNextIndex());
+		} finally {
+			stream.close();
+		}
+	}
+
+	static class QueueingListener implements EtcdWatchListener {
+		final BlockingQueue<EtcdResult> events = new LinkedBlockingQueue<EtcdResult>();
+
+		public void onEvent(EtcdResult event) {
+			events.add(event);
+		}
+
+		public void onResync(EtcdResult snapshot) {
+		}
+
+		public void onError(Throwable t) {
+		}
+	}
+
+	@Test
+	public void testWatchHub() throws Exception {
+		String key = prefix + "/hub";
+
+		EtcdWatchHub hub = new EtcdWatchHub(this.client);
+		try {
+			hub.watchPrefix(key);
+
+			QueueingListener a = new QueueingListener();
+			QueueingListener b = new QueueingListener();
+			QueueingListener all = new QueueingListener();
+			hub.subscribe(key + "/a", false, a);
+			EtcdWatchHub.Subscription subscriptionB = hub.subscribe(key + "/b", false, b);
+			hub.subscribe(key, true, all);
+			Assert.assertEquals(1, hub.getWatchCount());
+
+			this.client.set(key + "/a", "1");
+			this.client.set(key + "/b", "2");
+
+			Assert.assertEquals(key + "/a", a.events.poll(1, TimeUnit.SECONDS).node.key);
+			Assert.assertEquals(key + "/b", b.events.poll(1, TimeUnit.SECONDS).node.key);
+			Assert.assertEquals(key + "/a", all.events.poll(1, TimeUnit.SECONDS).node.key);
+			Assert.assertEquals(key + "/b", all.events.poll(1, TimeUnit.SECONDS).node.key);
+
+			subscriptionB.close();
+			this.client.set(key + "/b", "3");
+			Assert.assertEquals("3", all.events.poll(1, TimeUnit.SECONDS).node.value);
+			Assert.assertTrue(a.events.isEmpty());
+			Assert.assertTrue(b.events.isEmpty());
+
+			// Starting a new watch reads from etcd without holding up the rest of the hub
+			if (stub != null) {
+				final EtcdWatchHub slowHub = hub;
+				Thread subscriber = new Thread() {
+					@Override
+					public void run() {
+						try {
+							slowHub.subscribe(prefix + "/hub2", true, new QueueingListener());
+						} catch (EtcdClientException e) {
+							throw new IllegalStateException(e);
+						}
+					}
+				};
+				stub.setLatency(500);
+				try {
+					subscriber.start();
+					Thread.sleep(100);
+					long start = System.currentTimeMillis();
+					Assert.assertEquals(1, hub.getWatchCount());
+					Assert.assertTrue(System.currentTimeMillis() - start < 250);
+					subscriber.join();
+				} finally {
+					stub.setLatency(0);
+				}
+				Assert.assertEquals(2, hub.getWatchCount());
+			}
+		} finally {
+			hub.close();
+		}
+	}
+
+	@Test
+	public void testCachingClient() throws Exception {
+		String key = prefix + "/cache";
+
+		this.client.set(key + "/a", "1");
+		this.client.set(key + "/sub/b", "2");
+
+		CachingEtcdClient cache = new CachingEtcdClient(this.client, key);
+		try {
+			cache.start();
+
+			Assert.assertEquals("1", cache.get(key + "/a").node.value);
+			Assert.assertEquals("2", cache.get(key + "/sub/b").node.value);
+			Assert.assertNull(cache.get(key + "/missing"));
+			Assert.assertEquals(2, cache.listDirectory(key).size());
+
+			EtcdResult result = this.client.set(key + "/a", "3");
+			waitForIndex(cache, result.node.modifiedIndex);
+			Assert.assertEquals("3", cache.get(key + "/a").node.value);
+
+			result = this.client.set(key + "/c", "4");
+			waitForIndex(cache, result.node.modifiedIndex);
+			Assert.assertEquals("4", cache.get(key + "/c").node.value);
+			Assert.assertEquals(3, cache.listDirectory(key).size());
+
+			result = this.client.delete(key + "/a");
+			waitForIndex(cache, result.node.modifiedIndex);
+			Assert.assertNull(cache.get(key + "/a"));
+			Assert.assertEquals(2, cache.listDirectory(key).size());
+
+			Assert.assertEquals("4", cache.get(key + "/c", true).node.value);
+		} finally {
+			cache.close();
+		}
+	}
+
+	@Test
+	public void testCachingClientSnapshot() throws Exception {
+		String key = prefix + "/snapshot";
+		File file = File.createTempFile("jetcd", ".snapshot");
+		file.delete();
+
+		this.client.set(key + "/a", "1");
+		this.client.set(key + "/sub/b", "2");
+		this.client.set(key + "/gone", "3");
+
+		CachingEtcdClient cache = new CachingEtcdClient(this.client, key, Integer.MAX_VALUE, file);
+		cache.start();
+		final CachingEtcdClient saving = cache;
+		// Saves may overlap, e.g. with the save on close
+		final AtomicInteger saveErrors = new AtomicInteger();
+		List<Thread> savers = Lists.newArrayList();
+		for (int i = 0; i < 4; i++) {
+			savers.add(new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 20; j++) {
+						try {
+							saving.saveSnapshot();
+						} catch (IOException e) {
+							saveErrors.incrementAndGet();
+						}
+					}
+				}
+			});
+		}
+		for (Thread saver : savers) {
+			saver.start();
+		}
+		cache.close();
+		for (Thread saver : savers) {
+			saver.join();
+		}
+		Assert.assertEquals(0, saveErrors.get());
+		Assert.assertTrue(file.exists());
+
+		// Changes while we are down are caught up from the saved index, without reading the subtree
+		this.client.set(key + "/a", "4");
+		EtcdResult last = this.client.delete(key + "/gone");
+
+		EtcdMetricsRecorder recorder = new EtcdMetricsRecorder();
+		EtcdClientConfig config = new EtcdClientConfig();
+		config.listener = recorder;
+		EtcdClient client = new EtcdClient(etcdUri, config);
+		cache = new CachingEtcdClient(client, key, Integer.MAX_VALUE, file);
+		try {
+			cache.start();
+			Assert.assertEquals("2", cache.get(key + "/sub/b").node.value);
+			waitForIndex(cache, last.node.modifiedIndex);
+			Assert.assertEquals("4", cache.get(key + "/a").node.value);
+			Assert.assertNull(cache.get(key + "/gone"));
+			Assert.assertEquals(2, cache.listDirectory(key).size());
+			Assert.assertNull(recorder.getOperation("get"));
+		} finally {
+			cache.close();
+		}
+
+		// Once etcd has discarded the changes since the snapshot, the subtree is read in full
+		List<ListenableFuture<EtcdResult>> writes = Lists.newArrayList();
+		for (int i = 0; i < 1100; i++) {
+			writes.add(this.client.setAsync(prefix + "/churn", Integer.toString(i)));
+		}
+		Futures.allAsList(writes).get();
+		last = this.client.set(key + "/a", "5");
+
+		cache = new CachingEtcdClient(client, key, Integer.MAX_VALUE, file);
+		try {
+			cache.start();
+			waitForIndex(cache, last.node.modifiedIndex);
+			Assert.assertEquals("5", cache.get(key + "/a").node.value);
+			Assert.assertNotNull(recorder.getOperation("get"));
+		} finally {
+			cache.close();
+			client.close();
+			file.delete();
+		}
+	}
+
+	static void waitForIndex(CachingEtcdClient cache, long index) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (cache.getIndex() < index) {
+			Assert.assertTrue("Cache did not reach index " + index, System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void testBatchWriter() throws Exception {
+		String key = prefix + "/batch";
+
+		EtcdBatchWriter writer = new EtcdBatchWriter(this.client, 4);
+		List<ListenableFuture<EtcdResult>> results = Lists.newArrayList();
+		for (int i = 0; i < 50; i++) {
+			results.add(writer.set(key + "/" + i, "v" + i));
+			Assert.assertTrue(writer.getOutstanding() <= 4);
+		}
+		// Writes to one key are applied in order
+		for (int i = 0; i < 10; i++) {
+			results.add(writer.set(key + "/same", "v" + i));
+		}
+		writer.flush();
+		Assert.assertEquals(0, writer.getOutstanding());
+
+		for (ListenableFuture<EtcdResult> result : results) {
+			Assert.assertTrue(result.isDone());
+			Assert.assertNotNull(result.get());
+		}
+		Assert.assertEquals("v17", this.client.get(key + "/17").node.value);
+		Assert.assertEquals("v9", this.client.get(key + "/same").node.value);
+
+		ListenableFuture<EtcdResult> cas = writer.cas(key + "/same", "wrong", "x");
+		writer.close();
+		Assert.assertTrue(cas.get().isError());
+	}
+
 	@Test
 	public void testList() throws Exception {
 		String key = prefix + "/dir";
@@ -224,6 +1465,107 @@ public class SmokeTest {
 		}
 	}
 
+	@Test
+	public void testVisit() throws Exception {
+		String key = prefix + "/visit";
+
+		this.client.set(key + "/f1", "f1");
+		this.client.set(key + "/f2", "f2");
+		this.client.set(key + "/subdir1/f", "f");
+
+		final List<EtcdNode> visited = Lists.newArrayList();
+		EtcdResult result = this.client.visit(key, true, new EtcdNodeVisitor() {
+			public void visit(EtcdNode node) {
+				visited.add(node);
+			}
+		});
+
+		Assert.assertEquals(key, result.node.key);
+		Assert.assertTrue(result.node.dir);
+		Assert.assertNull(result.node.nodes);
+		Assert.assertNotNull(result.etcdIndex);
+
+		Assert.assertEquals(4, visited.size());
+		List<String> keys = Lists.newArrayList();
+		for (EtcdNode node : visited) {
+			Assert.assertNull(node.nodes);
+			keys.add(node.key);
+		}
+		// Directories are visited after their children
+		Assert.assertTrue(keys.indexOf(key + "/subdir1/f") < keys.indexOf(key + "/subdir1"));
+		Assert.assertTrue(keys.contains(key + "/f1"));
+		Assert.assertTrue(keys.contains(key + "/f2"));
+
+		Assert.assertNull(this.client.visit(key + "/missing", true, new EtcdNodeVisitor() {
+			public void visit(EtcdNode node) {
+				Assert.fail();
+			}
+		}));
+	}
+
+	@Test
+	public void testCompactTree() throws Exception {
+		String key = prefix + "/compact";
+
+		this.client.set(key + "/a", "1");
+		this.client.set(key + "/b/c", "2");
+		this.client.set(key + "/b/d", "\u00e9t\u00e9", 60);
+
+		EtcdCompactTree tree = this.client.getCompact(key, true);
+		EtcdNode expected = this.client.get(key, true).node;
+		Assert.assertEquals(5, tree.size());
+		Assert.assertEquals(EtcdClient.format(expected), EtcdClient.format(tree.toEtcdNode(0)));
+
+		int d = tree.find(key + "/b/d");
+		Assert.assertEquals(key + "/b/d", tree.key(d));
+		Assert.assertEquals("d", tree.name(d));
+		Assert.assertEquals("\u00e9t\u00e9", tree.value(d));
+		Assert.assertTrue(tree.ttl(d) > 0);
+		long remaining = tree.expiration(d) - System.currentTimeMillis();
+		Assert.assertTrue("Expiration " + remaining + "ms away", remaining > 50000 && remaining <= 61000);
+		Assert.assertEquals(tree.find(key + "/b"), tree.parent(d));
+		Assert.assertTrue(tree.isDir(tree.find(key + "/b")));
+		Assert.assertEquals(-1, tree.find(key + "/b/missing"));
+		Assert.assertEquals(-1, tree.find(key + "/bb"));
+		Assert.assertEquals(0, tree.find(key));
+
+		Assert.assertNull(this.client.getCompact(key + "/missing", true));
+
+		Assert.assertEquals(0, EtcdCompactTree.parseTimestamp("1970-01-01T00:00:00Z"));
+		Assert.assertEquals(1373160920964L, EtcdCompactTree.parseTimestamp("2013-07-06T18:35:20.964437624-07:00"));
+	}
+
+	@Test
+	public void testWalk() throws Exception {
+		String key = prefix + "/walk";
+
+		this.client.set(key + "/a/1", "a1");
+		this.client.set(key + "/a/2", "a2");
+		this.client.set(key + "/b/1", "b1");
+		this.client.set(key + "/b/c/1", "bc1");
+		this.client.set(key + "/d", "d");
+
+		List<String> keys = Lists.newArrayList();
+		EtcdTreeWalker walker = this.client.walk(key);
+		while (walker.hasNext()) {
+			keys.add(walker.next().key);
+		}
+		Assert.assertEquals(Lists.newArrayList(key + "/a", key + "/a/1", key + "/a/2", key + "/b", key + "/b/1",
+				key + "/b/c", key + "/b/c/1", key + "/d"), keys);
+
+		final String pruned = key + "/b";
+		keys.clear();
+		walker = this.client.walk(key, new Predicate<EtcdNode>() {
+			public boolean apply(EtcdNode node) {
+				return !node.key.equals(pruned);
+			}
+		});
+		while (walker.hasNext()) {
+			keys.add(walker.next().key);
+		}
+		Assert.assertEquals(Lists.newArrayList(key + "/a", key + "/a/1", key + "/a/2", key + "/b", key + "/d"), keys);
+	}
+
 	@Test
 	public void testGetVersion() throws Exception {
 		String version = this.client.getVersion();